@@ -0,0 +1,111 @@
+package com.github.momiji.benchmarks;
+
+import com.github.momiji.streams.parallel.ParallelStream;
+import com.github.momiji.streams.parallel.WaitStrategy;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Measures the bytes allocated per element by a parallel stage in its steady state, which must stay close
+ * to zero: items are carried by slots recycled by the consumer, tasks are queued in a preallocated ring,
+ * and results in a bounded channel.
+ * <br><br>
+ * One invocation processes the whole input, and counts as one operation per element, so gc.alloc.rate.norm
+ * is the number of bytes allocated per element, including the setup of the stage amortized over the input.
+ * The input is preallocated and the mapper returns its item, so that only the engine is measured.
+ * <br><br>
+ * Running this class runs the benchmarks with the allocation profiler, and fails if any of them allocates
+ * more than {@link #MAX_BYTES_PER_ELEMENT} bytes per element. Accepts the usual JMH command line options.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+    public static final int ELEMENTS = 100_000;
+    public static final double MAX_BYTES_PER_ELEMENT = 8;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean sorted;
+
+    /**
+     * Use the ring channel, with a yielding wait strategy, rather than the blocking channel.
+     */
+    @Param({"false", "true"})
+    public boolean ring;
+
+    private List<Integer> input;
+
+    @Setup
+    public void setup() {
+        input = IntStream.range(0, ELEMENTS).boxed().collect(Collectors.toList());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public long parallelMap() {
+        ParallelStream<Integer> stream = ParallelStream.of(input.stream()).executor(4, 256);
+        if (ring) stream = stream.waitStrategy(WaitStrategy.yielding());
+        if (sorted) stream = stream.sorted();
+        return stream.parallelMap(batchSize, i -> i)
+                .stream()
+                .mapToLong(i -> i)
+                .sum();
+    }
+
+    /**
+     * Results are accumulated by the workers, in a mutable container, as parallelReduce would box the sum.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public long parallelCollect() {
+        return ParallelStream.of(input.stream())
+                .executor(4, 256)
+                .parallelMap(batchSize, i -> i)
+                .parallelCollect(Collector.of(() -> new long[1], (long[] sum, Integer i) -> sum[0] += i,
+                        (a, b) -> {
+                            a[0] += b[0];
+                            return a;
+                        }, sum -> sum[0]));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(AllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        List<String> failures = new ArrayList<>();
+        for (RunResult result : new Runner(options).run()) {
+            Result alloc = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            if (alloc != null && alloc.getScore() > MAX_BYTES_PER_ELEMENT) {
+                failures.add(String.format("%s batchSize=%s sorted=%s ring=%s: %.1f bytes per element",
+                        result.getParams().getBenchmark(), result.getParams().getParam("batchSize"),
+                        result.getParams().getParam("sorted"), result.getParams().getParam("ring"),
+                        alloc.getScore()));
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError("allocations above " + MAX_BYTES_PER_ELEMENT + " bytes per element:\n"
+                    + String.join("\n", failures));
+        }
+    }
+}
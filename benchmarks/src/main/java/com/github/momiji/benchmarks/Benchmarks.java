@@ -0,0 +1,23 @@
+package com.github.momiji.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler, so each result also reports the bytes allocated
+ * per operation (gc.alloc.rate.norm).
+ * <br><br>
+ * Accepts the usual JMH command line options, for example {@code -p nThreads=4 EngineBenchmark.parallelMap}.
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
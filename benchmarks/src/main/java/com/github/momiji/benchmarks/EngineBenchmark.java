@@ -0,0 +1,217 @@
+package com.github.momiji.benchmarks;
+
+import com.github.momiji.streams.parallel.ParallelLongStream;
+import com.github.momiji.streams.parallel.ParallelStream;
+import com.github.momiji.wip.ParallelExecutorService;
+import com.github.momiji.wip.ParallelLimitedResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Compares the parallel engines on the same workload: a stream of integers mapped by a mapper burning
+ * a given amount of CPU, and summed by the consumer.
+ * <br><br>
+ * One operation processes the whole stream, and the elements counter reports the number of elements
+ * processed per second. With cost=0, the time and allocations per operation divided by the number of
+ * elements give the overhead per element of each engine.
+ * <br><br>
+ * The JDK parallel stream runs on a ForkJoinPool of nThreads threads, and ignores the queue size.
+ * ParallelLimitedResource and ParallelExecutorService create their own thread pool for each operation,
+ * as they do in normal use, and ParallelLimitedResource also ignores the queue size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    /**
+     * Cost of the mapper, in {@link Blackhole#consumeCPU(long)} tokens.
+     */
+    @Param({"0", "100", "10000"})
+    public int cost;
+
+    @Param({"1", "4", "16"})
+    public int nThreads;
+
+    @Param({"16", "256"})
+    public int queueSize;
+
+    @Param({"100", "10000"})
+    public int elements;
+
+    private ForkJoinPool forkJoinPool;
+
+    @Setup
+    public void setup() {
+        forkJoinPool = new ForkJoinPool(nThreads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        forkJoinPool.shutdown();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long elements;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            elements = 0;
+        }
+    }
+
+    @Benchmark
+    public long sequential(Counters counters) {
+        return count(counters, input().mapToLong(this::map).sum());
+    }
+
+    @Benchmark
+    public long jdkParallel(Counters counters) throws Exception {
+        return count(counters, forkJoinPool.submit(() -> input().parallel().mapToLong(this::map).sum()).get());
+    }
+
+    @Benchmark
+    public long parallelMap(Counters counters) {
+        return count(counters, ParallelStream.of(input())
+                .executor(nThreads, queueSize)
+                .parallelMap(this::map)
+                .stream()
+                .mapToLong(i -> i)
+                .sum());
+    }
+
+    @Benchmark
+    public long parallelMapSorted(Counters counters) {
+        return count(counters, ParallelStream.of(input())
+                .executor(nThreads, queueSize)
+                .sorted()
+                .parallelMap(this::map)
+                .stream()
+                .mapToLong(i -> i)
+                .sum());
+    }
+
+    /**
+     * Two stages fused into one, each worker running both mappers.
+     */
+    @Benchmark
+    public long parallelMapFused(Counters counters) {
+        return count(counters, ParallelStream.of(input())
+                .executor(nThreads, queueSize)
+                .parallelMap(this::map)
+                .parallelMap(this::map)
+                .stream()
+                .mapToLong(i -> i)
+                .sum());
+    }
+
+    /**
+     * Same as parallelMapFused, with a handoff between the two stages.
+     */
+    @Benchmark
+    public long parallelMapBarrier(Counters counters) {
+        return count(counters, ParallelStream.of(input())
+                .executor(nThreads, queueSize)
+                .parallelMap(this::map)
+                .barrier()
+                .parallelMap(this::map)
+                .stream()
+                .mapToLong(i -> i)
+                .sum());
+    }
+
+    /**
+     * Each worker maps and sums its items, so results do not go through the output queue.
+     */
+    @Benchmark
+    public long parallelReduce(Counters counters) {
+        return count(counters, ParallelStream.of(input())
+                .executor(nThreads, queueSize)
+                .parallelMap(this::map)
+                .parallelReduce(0L, (sum, i) -> sum + i, Long::sum));
+    }
+
+    /**
+     * Same as parallelMap on primitive longs, mapped and queued by chunks of 256 items without boxing.
+     */
+    @Benchmark
+    public long parallelLongStream(Counters counters) {
+        return count(counters, ParallelLongStream.of(LongStream.range(0, elements))
+                .executor(nThreads, queueSize)
+                .parallelMap(this::mapLong)
+                .stream()
+                .sum());
+    }
+
+    @Benchmark
+    public long limitedResourceSorted(Counters counters) {
+        return count(counters, new ParallelLimitedResource<>(input(), nThreads, true, this::map)
+                .process()
+                .mapToLong(r -> {
+                    r.release();
+                    return r.getResult();
+                })
+                .sum());
+    }
+
+    @Benchmark
+    public long limitedResourceUnsorted(Counters counters) {
+        return count(counters, new ParallelLimitedResource<>(input(), nThreads, false, this::map)
+                .process()
+                .mapToLong(r -> {
+                    r.release();
+                    return r.getResult();
+                })
+                .sum());
+    }
+
+    /**
+     * Results are summed by the sequential phase, in input order, on the workers themselves.
+     */
+    @Benchmark
+    public long executorService(Counters counters) throws Exception {
+        LongAdder sum = new LongAdder();
+        ParallelExecutorService<Integer, Integer, Void> service = new ParallelExecutorService<Integer, Integer, Void>(
+                nThreads, queueSize, this::map, r -> {
+            sum.add(r);
+            return null;
+        }) {
+        };
+        for (int i = 0; i < elements; i++) {
+            service.submit(i);
+        }
+        service.close();
+        return count(counters, sum.sum());
+    }
+
+    private Stream<Integer> input() {
+        return IntStream.range(0, elements).boxed();
+    }
+
+    private Integer map(Integer i) {
+        Blackhole.consumeCPU(cost);
+        return i;
+    }
+
+    private long mapLong(long i) {
+        Blackhole.consumeCPU(cost);
+        return i;
+    }
+
+    private long count(Counters counters, long result) {
+        counters.elements += elements;
+        return result;
+    }
+}
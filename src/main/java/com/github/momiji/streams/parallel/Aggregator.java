@@ -0,0 +1,83 @@
+package com.github.momiji.streams.parallel;
+
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongFunction;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Aggregates the items of a group in {@link ParallelStream#parallelGroupBy(ParallelFunction, Aggregator)}.
+ * <br><br>
+ * The value of a group is kept as a primitive long, doubles being stored as their raw bits, so updating it
+ * never allocates, and it is only converted to its result type once all items are done.
+ *
+ * @param <T> the type of the items
+ * @param <R> the type of the value of a group
+ */
+public final class Aggregator<T, R> {
+    private final long identity;
+    private final ToLongFunction<? super T> mapper;
+    private final LongBinaryOperator op;
+    private final LongFunction<R> finisher;
+
+    private Aggregator(long identity, ToLongFunction<? super T> mapper, LongBinaryOperator op, LongFunction<R> finisher) {
+        this.identity = identity;
+        this.mapper = mapper;
+        this.op = op;
+        this.finisher = finisher;
+    }
+
+    /**
+     * Counts the items of each group.
+     */
+    public static <T> Aggregator<T, Long> counting() {
+        return new Aggregator<>(0, e -> 1, Long::sum, Long::valueOf);
+    }
+
+    /**
+     * Sums a long value of the items of each group.
+     */
+    public static <T> Aggregator<T, Long> summingLong(ToLongFunction<? super T> mapper) {
+        return new Aggregator<>(0, mapper, Long::sum, Long::valueOf);
+    }
+
+    /**
+     * Sums a double value of the items of each group.
+     */
+    public static <T> Aggregator<T, Double> summingDouble(ToDoubleFunction<? super T> mapper) {
+        return new Aggregator<>(Double.doubleToRawLongBits(0.0),
+                e -> Double.doubleToRawLongBits(mapper.applyAsDouble(e)),
+                (a, b) -> Double.doubleToRawLongBits(Double.longBitsToDouble(a) + Double.longBitsToDouble(b)),
+                Double::longBitsToDouble);
+    }
+
+    /**
+     * Keeps the maximum of a long value of the items of each group.
+     */
+    public static <T> Aggregator<T, Long> maxLong(ToLongFunction<? super T> mapper) {
+        return new Aggregator<>(Long.MIN_VALUE, mapper, Math::max, Long::valueOf);
+    }
+
+    /**
+     * Keeps the minimum of a long value of the items of each group.
+     */
+    public static <T> Aggregator<T, Long> minLong(ToLongFunction<? super T> mapper) {
+        return new Aggregator<>(Long.MAX_VALUE, mapper, Math::min, Long::valueOf);
+    }
+
+    long getIdentity() {
+        return identity;
+    }
+
+    long apply(T item) {
+        return mapper.applyAsLong(item);
+    }
+
+    LongBinaryOperator getOp() {
+        return op;
+    }
+
+    LongFunction<R> getFinisher() {
+        return finisher;
+    }
+}
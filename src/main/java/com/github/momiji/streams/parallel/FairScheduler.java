@@ -0,0 +1,224 @@
+package com.github.momiji.streams.parallel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A process-wide pool of threads shared by tenants, for example the customers of a service, by weighted fair
+ * queuing, so that a tenant running a huge job cannot starve the others.
+ * <br><br>
+ * Each tenant has its own queue of tasks, a weight, and a cap on the number of threads it can use at the same
+ * time. Each tenant also has a virtual time, which advances by the time its tasks hold a thread divided by its
+ * weight, and a free thread always runs the next task of the tenant with the lowest virtual time, among those
+ * with pending tasks and under their cap. Over time, busy tenants thus get a share of the threads proportional
+ * to their weight. A tenant becoming busy starts at the current virtual time, so being idle earns no credit.
+ * <br><br>
+ * Stages running on a tenant give their thread back after each time slice, so a long stage of one tenant does
+ * not keep threads while others are waiting: see {@link ParallelStream#tenant(Tenant)}.
+ * <br><br>
+ * Picking a tenant is linear in the number of busy tenants, and takes a lock shared by all threads, which is
+ * fine for dozens of tenants running tasks of at least a few microseconds.
+ */
+public class FairScheduler {
+    private static final AtomicInteger SCHEDULER_COUNT = new AtomicInteger();
+    // virtual time is in nanoseconds for a weight of WEIGHT_SCALE
+    private static final long WEIGHT_SCALE = 1000;
+    private static final long DEFAULT_TIME_SLICE = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // guarded by lock
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private final List<Tenant> busy = new ArrayList<>();
+    private long virtualTime;
+    private boolean shutdown;
+    private final long timeSlice;
+
+    public FairScheduler(int nThreads) {
+        this(nThreads, DEFAULT_TIME_SLICE);
+    }
+
+    /**
+     * @param timeSlice the time, in nanoseconds, after which a stage gives its thread back if it has pending tasks
+     */
+    public FairScheduler(int nThreads, long timeSlice) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("nThreads must be greater than 0");
+        }
+        if (timeSlice < 1) {
+            throw new IllegalArgumentException("timeSlice must be greater than 0");
+        }
+        this.timeSlice = timeSlice;
+        int id = SCHEDULER_COUNT.incrementAndGet();
+        for (int i = 1; i <= nThreads; i++) {
+            Thread thread = new Thread(this::work, "fair-scheduler-" + id + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public long getTimeSlice() {
+        return timeSlice;
+    }
+
+    /**
+     * Returns the tenant with the given id, creating it if needed, or updating its weight and cap otherwise.
+     *
+     * @param weight     the share of the threads of the tenant, relative to the weights of the other busy tenants
+     * @param maxThreads the maximum number of threads running tasks of the tenant at the same time
+     */
+    public Tenant tenant(String id, int weight, int maxThreads) {
+        if (id == null) {
+            throw new IllegalArgumentException("id must not be null");
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be greater than 0");
+        }
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be greater than 0");
+        }
+        lock.lock();
+        try {
+            Tenant tenant = tenants.computeIfAbsent(id, k -> new Tenant(this, k));
+            tenant.weight = weight;
+            tenant.maxThreads = maxThreads;
+            // a raised cap may let waiting tasks run
+            available.signalAll();
+            return tenant;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the threads once all pending tasks have run. Tasks submitted after are rejected.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void submit(Tenant tenant, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("scheduler is shut down");
+            }
+            if (tenant.tasks.isEmpty() && tenant.running == 0) {
+                // no credit for the time spent idle
+                tenant.pass = Math.max(tenant.pass, virtualTime);
+            }
+            if (tenant.tasks.isEmpty()) {
+                busy.add(tenant);
+            }
+            tenant.tasks.add(task);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        for (; ; ) {
+            Tenant tenant;
+            Runnable task;
+            lock.lock();
+            try {
+                while ((tenant = pick()) == null) {
+                    if (shutdown && busy.isEmpty()) {
+                        return;
+                    }
+                    available.awaitUninterruptibly();
+                }
+                task = tenant.tasks.poll();
+                if (tenant.tasks.isEmpty()) {
+                    busy.remove(tenant);
+                }
+                tenant.running++;
+                virtualTime = Math.max(virtualTime, tenant.pass);
+            } finally {
+                lock.unlock();
+            }
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                // the task failed, but the thread must keep running the tasks of the other tenants
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                lock.lock();
+                try {
+                    tenant.running--;
+                    tenant.pass += elapsed * WEIGHT_SCALE / tenant.weight;
+                    if (!tenant.tasks.isEmpty()) {
+                        // the tenant may have been at its cap, another thread may now run its tasks
+                        available.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the busy tenant under its cap with the lowest virtual time, or null if none.
+     */
+    private Tenant pick() {
+        Tenant best = null;
+        for (Tenant tenant : busy) {
+            if (tenant.running < tenant.maxThreads && (best == null || tenant.pass < best.pass)) {
+                best = tenant;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The executor of a tenant, whose tasks are run by the threads of the scheduler.
+     */
+    public static final class Tenant implements Executor {
+        private final FairScheduler scheduler;
+        private final String id;
+        // guarded by the lock of the scheduler
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private int weight;
+        private int maxThreads;
+        private int running;
+        private long pass;
+
+        private Tenant(FairScheduler scheduler, String id) {
+            this.scheduler = scheduler;
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public FairScheduler getScheduler() {
+            return scheduler;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            scheduler.submit(this, task);
+        }
+    }
+}
@@ -1,25 +1,49 @@
 package com.github.momiji.streams.parallel;
 
+import com.github.momiji.streams.parallel.internal.WeightedLimiter;
+
 import java.util.concurrent.Semaphore;
 
 public class LimitedItem<T>  {
     private final T item;
     private final Semaphore limiter;
+    private final WeightedLimiter weightedLimiter;
+    private final long weight;
     private boolean released;
 
     public LimitedItem(T item, Semaphore limiter) {
         this.item = item;
         this.limiter = limiter;
+        this.weightedLimiter = null;
+        this.weight = 1;
+    }
+
+    LimitedItem(T item, WeightedLimiter limiter, long weight) {
+        this.item = item;
+        this.limiter = null;
+        this.weightedLimiter = limiter;
+        this.weight = weight;
     }
 
     public T get() {
         return item;
     }
 
+    /**
+     * Returns the weight held by this item until it is released, which is 1 if items are not weighted.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
     public void release() {
         if (!released && limiter != null) {
             limiter.release();
             released = true;
         }
+        if (!released && weightedLimiter != null) {
+            weightedLimiter.release(weight);
+            released = true;
+        }
     }
 }
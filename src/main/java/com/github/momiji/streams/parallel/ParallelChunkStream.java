@@ -0,0 +1,76 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.ParallelConfig;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The part of the primitive parallel streams which does not depend on the primitive type: the configuration
+ * and the execution of the stream of chunks.
+ *
+ * @param <C> the type of the chunks, a primitive array
+ * @param <S> the type of the primitive stream
+ */
+abstract class ParallelChunkStream<C, S extends ParallelChunkStream<C, S>> {
+    final ParallelStream<C> chunks;
+
+    ParallelChunkStream(ParallelStream<C> chunks) {
+        this.chunks = chunks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private S self() {
+        return (S) this;
+    }
+
+    //
+
+    /**
+     * @see ParallelStream#executor(int, int)
+     */
+    public S executor(int nThreads, int queueSize) {
+        chunks.executor(nThreads, queueSize);
+        return self();
+    }
+
+    /**
+     * @see ParallelStream#executor(ExecutorService)
+     */
+    public S executor(ExecutorService executor) {
+        chunks.executor(executor);
+        return self();
+    }
+
+    public S config(ParallelConfig config) {
+        chunks.config(config);
+        return self();
+    }
+
+    public S sorted() {
+        chunks.sorted();
+        return self();
+    }
+
+    /**
+     * @see ParallelStream#barrier()
+     */
+    public S barrier() {
+        chunks.barrier();
+        return self();
+    }
+
+    /**
+     * Returns the statistics of the parallel stage producing this stream, counting chunks.
+     *
+     * @see ParallelStream#getStats()
+     */
+    public StageStats getStats() {
+        return chunks.getStats();
+    }
+
+    //
+
+    public void run() {
+        chunks.run();
+    }
+}
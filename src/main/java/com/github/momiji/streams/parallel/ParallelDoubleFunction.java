@@ -0,0 +1,22 @@
+package com.github.momiji.streams.parallel;
+
+/**
+ * Represents a function that accepts a double-valued argument and produces a result.
+ * Compared to {@link java.util.function.DoubleFunction}, this interface throws an exception.
+ *
+ * <p>This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #apply(double)}.
+ *
+ * @param <R> the type of the result of the function
+ */
+@FunctionalInterface
+public interface ParallelDoubleFunction<R> {
+
+    /**
+     * Applies this function to the given argument.
+     *
+     * @param value the function argument
+     * @return the function result
+     */
+    R apply(double value) throws Exception;
+}
@@ -0,0 +1,69 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.Chunks;
+
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+
+/**
+ * A stream of doubles mapped in parallel, the primitive specialization of {@link ParallelStream}.
+ * <br><br>
+ * Items go through the parallel stages by chunks: each chunk is a double array mapped by one task and queued
+ * as one result, so items are never boxed. Queue sizes, permits and statistics count chunks, not items.
+ */
+public class ParallelDoubleStream extends ParallelChunkStream<double[], ParallelDoubleStream> {
+    ParallelDoubleStream(ParallelStream<double[]> chunks) {
+        super(chunks);
+    }
+
+    public static ParallelDoubleStream of(DoubleStream input) {
+        return of(input, Chunks.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param chunkSize the number of items per chunk
+     */
+    public static ParallelDoubleStream of(DoubleStream input, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        return new ParallelDoubleStream(ParallelStream.of(Chunks.ofDouble(input, chunkSize)));
+    }
+
+    //
+
+    public DoubleStream stream() {
+        return chunks.stream().flatMapToDouble(Arrays::stream);
+    }
+
+    //
+
+    /**
+     * Maps items in parallel, each chunk being mapped in place by one task.
+     *
+     * @see ParallelStream#parallelMap(ParallelFunction)
+     */
+    public ParallelDoubleStream parallelMap(ParallelDoubleUnaryOperator mapper) {
+        return new ParallelDoubleStream(chunks.parallelMap(chunk -> {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = mapper.applyAsDouble(chunk[i]);
+            }
+            return chunk;
+        }));
+    }
+
+    /**
+     * Maps items to objects in parallel, each chunk being mapped by one task.
+     *
+     * @see ParallelStream#parallelMap(ParallelFunction)
+     */
+    public <R> ParallelStream<R> parallelMapToObj(ParallelDoubleFunction<? extends R> mapper) {
+        return ParallelStream.unchunk(chunks.parallelMap(chunk -> {
+            Object[] results = new Object[chunk.length];
+            for (int i = 0; i < chunk.length; i++) {
+                results[i] = mapper.apply(chunk[i]);
+            }
+            return results;
+        }));
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.momiji.streams.parallel;
+
+/**
+ * Represents an operation on a single double-valued operand that produces a double-valued result.
+ * Compared to {@link java.util.function.DoubleUnaryOperator}, this interface throws an exception.
+ *
+ * <p>This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #applyAsDouble(double)}.
+ */
+@FunctionalInterface
+public interface ParallelDoubleUnaryOperator {
+
+    /**
+     * Applies this operator to the given operand.
+     *
+     * @param operand the operand
+     * @return the operator result
+     */
+    double applyAsDouble(double operand) throws Exception;
+}
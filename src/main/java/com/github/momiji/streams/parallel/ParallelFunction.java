@@ -20,4 +20,29 @@ public interface ParallelFunction<T, R> {
      * @return the function result
      */
     R apply(T t) throws Exception;
+
+    /**
+     * Returns true if calling this function several times with the same argument has the same effect as
+     * calling it once, so that a call can be duplicated, see {@link ParallelStream#hedged(double, double)}.
+     */
+    default boolean isIdempotent() {
+        return false;
+    }
+
+    /**
+     * Returns the given function, declared as idempotent.
+     */
+    static <T, R> ParallelFunction<T, R> idempotent(ParallelFunction<T, R> function) {
+        return new ParallelFunction<T, R>() {
+            @Override
+            public R apply(T t) throws Exception {
+                return function.apply(t);
+            }
+
+            @Override
+            public boolean isIdempotent() {
+                return true;
+            }
+        };
+    }
 }
@@ -0,0 +1,69 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.Chunks;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A stream of ints mapped in parallel, the primitive specialization of {@link ParallelStream}.
+ * <br><br>
+ * Items go through the parallel stages by chunks: each chunk is a int array mapped by one task and queued
+ * as one result, so items are never boxed. Queue sizes, permits and statistics count chunks, not items.
+ */
+public class ParallelIntStream extends ParallelChunkStream<int[], ParallelIntStream> {
+    ParallelIntStream(ParallelStream<int[]> chunks) {
+        super(chunks);
+    }
+
+    public static ParallelIntStream of(IntStream input) {
+        return of(input, Chunks.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param chunkSize the number of items per chunk
+     */
+    public static ParallelIntStream of(IntStream input, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        return new ParallelIntStream(ParallelStream.of(Chunks.ofInt(input, chunkSize)));
+    }
+
+    //
+
+    public IntStream stream() {
+        return chunks.stream().flatMapToInt(Arrays::stream);
+    }
+
+    //
+
+    /**
+     * Maps items in parallel, each chunk being mapped in place by one task.
+     *
+     * @see ParallelStream#parallelMap(ParallelFunction)
+     */
+    public ParallelIntStream parallelMap(ParallelIntUnaryOperator mapper) {
+        return new ParallelIntStream(chunks.parallelMap(chunk -> {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = mapper.applyAsInt(chunk[i]);
+            }
+            return chunk;
+        }));
+    }
+
+    /**
+     * Maps items to objects in parallel, each chunk being mapped by one task.
+     *
+     * @see ParallelStream#parallelMap(ParallelFunction)
+     */
+    public <R> ParallelStream<R> parallelMapToObj(ParallelIntFunction<? extends R> mapper) {
+        return ParallelStream.unchunk(chunks.parallelMap(chunk -> {
+            Object[] results = new Object[chunk.length];
+            for (int i = 0; i < chunk.length; i++) {
+                results[i] = mapper.apply(chunk[i]);
+            }
+            return results;
+        }));
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.momiji.streams.parallel;
+
+/**
+ * Represents an operation on a single int-valued operand that produces an int-valued result.
+ * Compared to {@link java.util.function.IntUnaryOperator}, this interface throws an exception.
+ *
+ * <p>This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #applyAsInt(int)}.
+ */
+@FunctionalInterface
+public interface ParallelIntUnaryOperator {
+
+    /**
+     * Applies this operator to the given operand.
+     *
+     * @param operand the operand
+     * @return the operator result
+     */
+    int applyAsInt(int operand) throws Exception;
+}
@@ -0,0 +1,69 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.Chunks;
+
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+/**
+ * A stream of longs mapped in parallel, the primitive specialization of {@link ParallelStream}.
+ * <br><br>
+ * Items go through the parallel stages by chunks: each chunk is a long array mapped by one task and queued
+ * as one result, so items are never boxed. Queue sizes, permits and statistics count chunks, not items.
+ */
+public class ParallelLongStream extends ParallelChunkStream<long[], ParallelLongStream> {
+    ParallelLongStream(ParallelStream<long[]> chunks) {
+        super(chunks);
+    }
+
+    public static ParallelLongStream of(LongStream input) {
+        return of(input, Chunks.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param chunkSize the number of items per chunk
+     */
+    public static ParallelLongStream of(LongStream input, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        return new ParallelLongStream(ParallelStream.of(Chunks.ofLong(input, chunkSize)));
+    }
+
+    //
+
+    public LongStream stream() {
+        return chunks.stream().flatMapToLong(Arrays::stream);
+    }
+
+    //
+
+    /**
+     * Maps items in parallel, each chunk being mapped in place by one task.
+     *
+     * @see ParallelStream#parallelMap(ParallelFunction)
+     */
+    public ParallelLongStream parallelMap(ParallelLongUnaryOperator mapper) {
+        return new ParallelLongStream(chunks.parallelMap(chunk -> {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = mapper.applyAsLong(chunk[i]);
+            }
+            return chunk;
+        }));
+    }
+
+    /**
+     * Maps items to objects in parallel, each chunk being mapped by one task.
+     *
+     * @see ParallelStream#parallelMap(ParallelFunction)
+     */
+    public <R> ParallelStream<R> parallelMapToObj(ParallelLongFunction<? extends R> mapper) {
+        return ParallelStream.unchunk(chunks.parallelMap(chunk -> {
+            Object[] results = new Object[chunk.length];
+            for (int i = 0; i < chunk.length; i++) {
+                results[i] = mapper.apply(chunk[i]);
+            }
+            return results;
+        }));
+    }
+}
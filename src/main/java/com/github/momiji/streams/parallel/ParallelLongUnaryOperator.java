@@ -0,0 +1,20 @@
+package com.github.momiji.streams.parallel;
+
+/**
+ * Represents an operation on a single long-valued operand that produces a long-valued result.
+ * Compared to {@link java.util.function.LongUnaryOperator}, this interface throws an exception.
+ *
+ * <p>This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #applyAsLong(long)}.
+ */
+@FunctionalInterface
+public interface ParallelLongUnaryOperator {
+
+    /**
+     * Applies this operator to the given operand.
+     *
+     * @param operand the operand
+     * @return the operator result
+     */
+    long applyAsLong(long operand) throws Exception;
+}
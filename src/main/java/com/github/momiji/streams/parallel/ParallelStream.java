@@ -2,23 +2,58 @@ package com.github.momiji.streams.parallel;
 
 import com.github.momiji.streams.parallel.internal.*;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class ParallelStream<T> {
 
+    private static final long ABORT_CHECK_MILLIS = 100;
+    private static final int CHANNEL_EXTRA_CAPACITY = 4;
+
     private Stream<T> input;
     private ParallelConfig config;
-    private final BlockingQueue<QueueItem<T>> queue = new LinkedBlockingQueue<>();
     private final AtomicBoolean aborted = new AtomicBoolean(false);
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
 
-    private ExecutorService executor;
+    // stage started from this stream
+    private LimitedExecutor executor;
+    private LimitedExecutor producer;
+    private AdaptiveLimit adaptiveLimit;
+    private Hedging hedging;
+    private Executor hedgeExecutor;
+    private StageMetrics metrics;
+    private TraceRecorder.Stage trace;
     private Semaphore queueSemaphore;
+    private StageOutput<?> output;
+    private WeakReference<Object> consumer;
+    private Set<Future<?>> pendingFutures;
     private boolean sorted;
+    private int reorderWindow;
+
+    // stage producing this stream
+    private LimitedExecutor stageExecutor;
+    private StageStats stageStats;
+    // not started until this stream is used, so that the next parallel stage can be fused into it
+    private PendingStage<T> pending;
+    private boolean fused;
+    private boolean barrier;
 
     private ParallelStream() {
     }
@@ -31,23 +66,49 @@ public class ParallelStream<T> {
 
     private void init() {
         if (config == null) {
-            config = ParallelConfig.newConfig()
-                    .setNThreads(Runtime.getRuntime().availableProcessors())
-                    .setQueueSize(100);
+            config = ParallelConfig.newConfig();
         }
-        if (config.getNThreads() > 1) {
-            executor = Executors.newFixedThreadPool(config.getNThreads());
-        } else {
-            executor = Executors.newSingleThreadExecutor();
+        Executor service = config.getTenant() != null ? config.getTenant() : config.getExecutor();
+        if (service == null && config.isVirtualThreads()) {
+            service = VirtualThreads.executor();
+        }
+        if (service == null) {
+            service = ParallelConfig.defaultExecutor();
+        }
+        // each pending task holds at least one queue permit
+        executor = new LimitedExecutor(service, config.getNThreads(), config.getQueueSize());
+        if (config.getTenant() != null) {
+            executor.setTimeSlice(config.getTenant().getScheduler().getTimeSlice());
+        }
+        producer = new LimitedExecutor(ParallelConfig.defaultExecutor(), 1);
+        adaptiveLimit = config.isAdaptive()
+                ? new AdaptiveLimit(config.getMinThreads(), config.getMaxThreads(), config.getNThreads(), executor::setMaxConcurrency)
+                : null;
+        if (adaptiveLimit != null) {
+            executor.setMaxConcurrency(adaptiveLimit.getLimit());
         }
+        hedging = config.isHedged() ? new Hedging(config.getHedgePercentile(), config.getHedgeBudget()) : null;
+        // hedges are not counted in nThreads, they are bounded by the budget, and tracked in pendingFutures
+        hedgeExecutor = service;
         queueSemaphore = new Semaphore(config.getQueueSize());
     }
 
+    private ParallelConfig config() {
+        return config == null ? ParallelConfig.newConfig() : config;
+    }
+
     private Iterator<T> iter() {
+        start();
         if (input == null) return Collections.emptyIterator();
         return input.iterator();
     }
 
+    private Spliterator<T> spliter() {
+        start();
+        if (input == null) return Spliterators.emptySpliterator();
+        return input.spliterator();
+    }
+
     //
 
     public ParallelStream<T> executor(int nThreads, int queueSize) {
@@ -60,12 +121,156 @@ public class ParallelStream<T> {
         if (nThreads > queueSize) {
             throw new IllegalArgumentException("nThreads must be less than or equal to queueSize");
         }
-        config = ParallelConfig.newConfig().setNThreads(nThreads).setQueueSize(queueSize);
-        executor = Executors.newFixedThreadPool(nThreads);
-        queueSemaphore = new Semaphore(queueSize);
+        config = config().copy().setNThreads(nThreads).setQueueSize(queueSize);
+        return this;
+    }
+
+    /**
+     * Runs the tasks of the next parallel stages on the given executor instead of the default shared one.
+     * <br><br>
+     * The executor is never shut down by the stages, and each stage still runs at most nThreads tasks
+     * at the same time, so it can be safely shared between stages and pipelines.
+     */
+    public ParallelStream<T> executor(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        config = config().copy().setExecutor(executor);
+        return this;
+    }
+
+    /**
+     * Runs the tasks of the next parallel stages on the threads of a fair scheduler shared between tenants.
+     * <br><br>
+     * Each stage still runs at most nThreads tasks at the same time, and all the stages of the tenant run at
+     * most its maxThreads tasks at the same time.
+     *
+     * @see ParallelConfig#setTenant(FairScheduler.Tenant)
+     * @see FairScheduler#tenant(String, int, int)
+     */
+    public ParallelStream<T> tenant(FairScheduler.Tenant tenant) {
+        if (tenant == null) {
+            throw new IllegalArgumentException("tenant must not be null");
+        }
+        config = config().copy().setTenant(tenant);
+        return this;
+    }
+
+    /**
+     * Runs the tasks of the next parallel stages on virtual threads, when available.
+     *
+     * @see ParallelConfig#setVirtualThreads(boolean)
+     */
+    public ParallelStream<T> virtualThreads() {
+        config = config().copy().setVirtualThreads(true);
+        return this;
+    }
+
+    /**
+     * Sends the results of the next parallel stages through a lock-free ring buffer.
+     *
+     * @see ParallelConfig#setWaitStrategy(WaitStrategy)
+     */
+    public ParallelStream<T> waitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("waitStrategy must not be null");
+        }
+        config = config().copy().setWaitStrategy(waitStrategy);
+        return this;
+    }
+
+    /**
+     * Lets the next parallel stages adjust their concurrency limit at runtime.
+     *
+     * @see ParallelConfig#setAdaptive(int, int)
+     */
+    public ParallelStream<T> adaptive(int minThreads, int maxThreads) {
+        if (minThreads < 1) {
+            throw new IllegalArgumentException("minThreads must be greater than 0");
+        }
+        if (maxThreads < minThreads) {
+            throw new IllegalArgumentException("maxThreads must be greater than or equal to minThreads");
+        }
+        config = config().copy().setAdaptive(minThreads, maxThreads);
         return this;
     }
 
+    /**
+     * Lets the next parallelMap stages start a second attempt of the items still being mapped after the given
+     * percentile of the recent mapper latencies, the first attempt to complete giving the result, and the
+     * other one being interrupted and its result discarded.
+     * <br><br>
+     * This cuts the tail latency of mappers like remote calls, especially with {@link #sorted()}, where a single
+     * slow item holds back all the results after it. Only mappers declared with
+     * {@link ParallelFunction#idempotent(ParallelFunction)} are hedged, as an item can be mapped twice. Second
+     * attempts run on the executor beside the nThreads workers, the budget bounding the extra load, and are
+     * interrupted like the other tasks when the stream is closed.
+     *
+     * @param percentile the percentile of the recent latencies after which an item is hedged, for example 95
+     * @param budget     the maximum number of second attempts, as a fraction of the number of tasks, for example 0.05
+     * @see ParallelConfig#setHedging(double, double)
+     */
+    public ParallelStream<T> hedged(double percentile, double budget) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget must be greater than 0");
+        }
+        config = config().copy().setHedging(percentile, budget);
+        return this;
+    }
+
+    /**
+     * Registers the statistics of the next parallel stages as JMX MXBeans with the given name.
+     *
+     * @see ParallelConfig#setJmxName(String)
+     */
+    public ParallelStream<T> jmx(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        config = config().copy().setJmxName(name);
+        return this;
+    }
+
+    /**
+     * Records the lifecycle of the items of the next parallel stages in the given trace.
+     *
+     * @see ParallelConfig#setTrace(ParallelTrace)
+     */
+    public ParallelStream<T> trace(ParallelTrace trace) {
+        if (trace == null) {
+            throw new IllegalArgumentException("trace must not be null");
+        }
+        config = config().copy().setTrace(trace);
+        return this;
+    }
+
+    public ParallelStream<T> config(ParallelConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("config must not be null");
+        }
+        this.config = config;
+        return this;
+    }
+
+    /**
+     * Returns the current concurrency limit of the parallel stage producing this stream,
+     * which changes over time in adaptive mode, or 0 if this stream is not produced by a started parallel stage.
+     */
+    public int getConcurrencyLimit() {
+        return stageExecutor == null ? 0 : stageExecutor.getMaxConcurrency();
+    }
+
+    /**
+     * Returns the statistics of the parallel stage producing this stream, or null if this stream is not
+     * produced by a started parallel stage.
+     */
+    public StageStats getStats() {
+        return stageStats;
+    }
+
     //
 
     public void run() {
@@ -75,11 +280,18 @@ public class ParallelStream<T> {
         }
     }
 
+    /**
+     * Returns the results as a stream.
+     * <br><br>
+     * When the results are not sorted, the stream can be made parallel, so that several threads consume them.
+     */
     public Stream<T> stream() {
+        start();
         return input;
     }
 
     public void forEach(ParallelConsumer<? super T> action) {
+        start();
         input.forEach(e -> {
             try {
                 action.accept(e);
@@ -90,9 +302,11 @@ public class ParallelStream<T> {
     }
 
     public <R> ParallelStream<R> map(ParallelFunction<? super T, ? extends R> mapper) {
+        start();
         ParallelStream<R> r = new ParallelStream<>();
         r.config = config;
         r.sorted = sorted;
+        r.reorderWindow = reorderWindow;
         r.input = input.map(e -> {
             try {
                 return mapper.apply(e);
@@ -112,51 +326,833 @@ public class ParallelStream<T> {
         }).run();
     }
 
+    /**
+     * Collects items in parallel, with at most nThreads items being accumulated at the same time.
+     * <br><br>
+     * Each worker accumulates its items into its own container, and containers are combined once all items
+     * are done, so results do not go through a queue and a single consumer. If this stream is produced by a
+     * parallelMap with the same configuration which has not been started yet, its workers map and accumulate
+     * each item, unless {@link #barrier()} is used.
+     * <br><br>
+     * Items are accumulated in no particular order, even when sorted, so the collector must not depend on
+     * the order of items.
+     */
+    public <A, R> R parallelCollect(Collector<? super T, A, R> collector) {
+        if (pending != null && !barrier && config == pending.upstream.config) {
+            PendingStage<T> stage = pending;
+            pending = null;
+            fused = true;
+            return stage.collect(collector);
+        }
+        return collect(1, e -> e, collector);
+    }
+
+    /**
+     * Reduces items in parallel, with at most nThreads items being accumulated at the same time.
+     * <br><br>
+     * Same as {@link #parallelCollect(Collector)}: each worker reduces its items starting from the identity,
+     * and the partial results are combined once all items are done, in no particular order.
+     *
+     * @param identity    the identity value of the combiner
+     * @param accumulator the function adding an item to a partial result
+     * @param combiner    the function combining two partial results, which must be compatible with the accumulator
+     */
+    @SuppressWarnings("unchecked")
+    public <U> U parallelReduce(U identity, BiFunction<U, ? super T, U> accumulator, BinaryOperator<U> combiner) {
+        return parallelCollect(Collector.<T, U[], U>of(
+                () -> (U[]) new Object[]{identity},
+                (a, e) -> a[0] = accumulator.apply(a[0], e),
+                (a, b) -> {
+                    a[0] = combiner.apply(a[0], b[0]);
+                    return a;
+                },
+                a -> a[0]));
+    }
+
+    /**
+     * Groups items in parallel, and aggregates the items of each group.
+     * <br><br>
+     * Same as {@link #parallelCollect(Collector)}, but all workers update the same map, striped so that they
+     * rarely contend, where the value of each group is a primitive long, so counting and summing items does
+     * not box them. The map is returned once all items are done.
+     *
+     * @param keyFn      the function returning the group of an item, which can be null
+     * @param aggregator the aggregation of the items of a group, for example {@link Aggregator#counting()}
+     */
+    public <K, R> Map<K, R> parallelGroupBy(ParallelFunction<? super T, ? extends K> keyFn,
+                                            Aggregator<? super T, R> aggregator) {
+        StripedLongMap<K> groups = new StripedLongMap<>(config().getNThreads(), aggregator.getIdentity(), aggregator.getOp());
+        return parallelCollect(Collector.<T, StripedLongMap<K>, Map<K, R>>of(
+                () -> groups,
+                (map, e) -> {
+                    try {
+                        map.accumulate(keyFn.apply(e), aggregator.apply(e));
+                    } catch (Exception ex) {
+                        throw new ParallelException(ex);
+                    }
+                },
+                (a, b) -> a,
+                map -> map.toMap(aggregator.getFinisher()),
+                Collector.Characteristics.CONCURRENT, Collector.Characteristics.UNORDERED));
+    }
+
+    /**
+     * Maps items in parallel, with at most nThreads items being mapped at the same time.
+     * <br><br>
+     * The stage starts when the resulting stream is used. If it is used by another parallelMap with the same
+     * configuration, ordering and batch size, both stages are fused: each worker runs both mappers, one after
+     * the other, so items are not handed off to another thread between them. Use {@link #barrier()} to keep
+     * the stages apart.
+     */
     public <R> ParallelStream<R> parallelMap(ParallelFunction<? super T, ? extends R> mapper) {
+        return parallelMap(1, mapper);
+    }
+
+    /**
+     * Same as {@link #parallelMap(ParallelFunction)}, but items are sent to workers by batches.
+     * <br><br>
+     * Each worker maps a whole batch and publishes its results at once, which amortizes the cost of
+     * submitting tasks and queueing results when the mapper is cheap. A batch takes as many queue permits
+     * as its size, so the batch size must be less than or equal to the queue size.
+     *
+     * @param batchSize the maximum number of items per batch
+     */
+    public <R> ParallelStream<R> parallelMap(int batchSize, ParallelFunction<? super T, ? extends R> mapper) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        if (config == null) {
+            config = ParallelConfig.newConfig();
+        }
+        if (batchSize > config.getQueueSize()) {
+            throw new IllegalArgumentException("batchSize must be less than or equal to queueSize");
+        }
         ParallelStream<R> r = new ParallelStream<>();
-        //
+        r.config = config;
+        if (fusable(batchSize)) {
+            r.pending = pending.then(mapper);
+            pending = null;
+            fused = true;
+        } else {
+            r.pending = new PendingStage<>(this, batchSize, mapper);
+        }
+        return r;
+    }
+
+    /**
+     * Maps items to ints in parallel, by chunks of {@link Chunks#DEFAULT_SIZE} items.
+     *
+     * @see ParallelIntStream
+     */
+    public ParallelIntStream parallelMapToInt(ParallelToIntFunction<? super T> mapper) {
+        return parallelMapToInt(Chunks.DEFAULT_SIZE, mapper);
+    }
+
+    /**
+     * Maps items to ints in parallel, each chunk of items being mapped by one task into a int array.
+     * <br><br>
+     * The stage is fused with the parallelMap producing this stream, as by {@link #parallelMap(ParallelFunction)}.
+     *
+     * @param chunkSize the number of items per chunk
+     * @see ParallelIntStream
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelIntStream parallelMapToInt(int chunkSize, ParallelToIntFunction<? super T> mapper) {
+        return new ParallelIntStream(parallelMapChunks(chunkSize, chunk -> {
+            int[] results = new int[chunk.length];
+            for (int i = 0; i < chunk.length; i++) {
+                results[i] = mapper.applyAsInt((T) chunk[i]);
+            }
+            return results;
+        }));
+    }
+
+    /**
+     * Maps items to longs in parallel, by chunks of {@link Chunks#DEFAULT_SIZE} items.
+     *
+     * @see ParallelLongStream
+     */
+    public ParallelLongStream parallelMapToLong(ParallelToLongFunction<? super T> mapper) {
+        return parallelMapToLong(Chunks.DEFAULT_SIZE, mapper);
+    }
+
+    /**
+     * Maps items to longs in parallel, each chunk of items being mapped by one task into a long array.
+     * <br><br>
+     * The stage is fused with the parallelMap producing this stream, as by {@link #parallelMap(ParallelFunction)}.
+     *
+     * @param chunkSize the number of items per chunk
+     * @see ParallelLongStream
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelLongStream parallelMapToLong(int chunkSize, ParallelToLongFunction<? super T> mapper) {
+        return new ParallelLongStream(parallelMapChunks(chunkSize, chunk -> {
+            long[] results = new long[chunk.length];
+            for (int i = 0; i < chunk.length; i++) {
+                results[i] = mapper.applyAsLong((T) chunk[i]);
+            }
+            return results;
+        }));
+    }
+
+    /**
+     * Maps items to doubles in parallel, by chunks of {@link Chunks#DEFAULT_SIZE} items.
+     *
+     * @see ParallelDoubleStream
+     */
+    public ParallelDoubleStream parallelMapToDouble(ParallelToDoubleFunction<? super T> mapper) {
+        return parallelMapToDouble(Chunks.DEFAULT_SIZE, mapper);
+    }
+
+    /**
+     * Maps items to doubles in parallel, each chunk of items being mapped by one task into a double array.
+     * <br><br>
+     * The stage is fused with the parallelMap producing this stream, as by {@link #parallelMap(ParallelFunction)}.
+     *
+     * @param chunkSize the number of items per chunk
+     * @see ParallelDoubleStream
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelDoubleStream parallelMapToDouble(int chunkSize, ParallelToDoubleFunction<? super T> mapper) {
+        return new ParallelDoubleStream(parallelMapChunks(chunkSize, chunk -> {
+            double[] results = new double[chunk.length];
+            for (int i = 0; i < chunk.length; i++) {
+                results[i] = mapper.applyAsDouble((T) chunk[i]);
+            }
+            return results;
+        }));
+    }
+
+    /**
+     * Prevents the next parallel stage from being fused with the stage producing this stream.
+     * <br><br>
+     * Stages with different configurations, for example different concurrency limits, are never fused,
+     * but a barrier can still be useful, for example to let a fast mapper run ahead of a slow one.
+     */
+    public ParallelStream<T> barrier() {
+        barrier = true;
+        return this;
+    }
+
+    /**
+     * Same as {@link #parallelMap(ParallelFunction)}, for a mapper returning a {@link CompletionStage}.
+     * <br><br>
+     * The mapper is called by the producer, so it must return quickly and do its work asynchronously,
+     * and results are published when the stages complete. No thread is held while a stage is pending,
+     * so the number of concurrent calls is only limited by maxInFlight and the queue size.
+     *
+     * @param maxInFlight the maximum number of pending stages
+     */
+    @SuppressWarnings("unchecked")
+    public <R> ParallelStream<R> parallelMapAsync(ParallelFunction<? super T, ? extends CompletionStage<? extends R>> mapper,
+                                                  int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be greater than 0");
+        }
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        start();
         init();
-        CompletableFuture.runAsync(() -> {
+        Set<Future<?>> futures = ConcurrentHashMap.newKeySet();
+        pendingFutures = futures;
+        return stage(next(), 1, null, (QueueSlot<R> slot) -> {
+            if (!acquire(inFlight, 1)) {
+                release(slot);
+                return;
+            }
+            StageOutput<R> out = slot.getOutput();
+            long seq = slot.getSeq();
+            long start = System.nanoTime();
+            trace.record(seq, TraceRecorder.Phase.START);
+            CompletionStage<? extends R> stage;
             try {
-                long count = 0;
+                stage = mapper.apply((T) slot.get(0));
+            } catch (Exception ex) {
+                inFlight.release();
+                release(slot);
+                throw ex;
+            }
+            if (stage instanceof Future) futures.add((Future<?>) stage);
+            stage.whenComplete((value, ex) -> {
+                inFlight.release();
+                if (stage instanceof Future) futures.remove(stage);
+                long latency = System.nanoTime() - start;
+                trace.record(seq, TraceRecorder.Phase.END);
+                metrics.recordTask(latency, 1);
+                if (adaptiveLimit != null) adaptiveLimit.record(latency);
+                if (ex != null) {
+                    aborted.set(true);
+                    release(slot);
+                    out.fail(unwrap(ex));
+                    return;
+                }
+                slot.set(0, value);
+                if (aborted.get()) {
+                    release(slot);
+                    return;
+                }
+                out.publish(seq, slot);
+            });
+        });
+    }
+
+    /**
+     * Same as {@link #parallelMap(ParallelFunction)}, but items with the same key are mapped one at a time,
+     * in input order.
+     * <br><br>
+     * Results of items with the same key are emitted in input order, while items with different keys are
+     * mapped in parallel and never wait for each other, like partitions of a log. Use {@link #sorted()}
+     * for a global order instead.
+     *
+     * @param keyFn the function returning the key of an item, called by the producer
+     */
+    public <K, R> ParallelStream<R> parallelMapKeyed(ParallelFunction<? super T, ? extends K> keyFn,
+                                                     ParallelFunction<? super T, ? extends R> mapper) {
+        start();
+        init();
+        KeyedExecutor keyed = new KeyedExecutor(executor);
+        return stage(next(), 1, slot -> runTask(slot, mapper), slot -> {
+            @SuppressWarnings("unchecked")
+            K key = keyFn.apply((T) slot.get(0));
+            keyed.execute(key, slot);
+        });
+    }
+
+    /**
+     * Starts the parallel stage producing this stream, if it has not been started yet.
+     */
+    private void start() {
+        if (fused) {
+            throw new IllegalStateException("stream has been fused with the next parallel stage");
+        }
+        if (pending != null) {
+            PendingStage<T> stage = pending;
+            pending = null;
+            stage.start(this);
+        }
+    }
+
+    /**
+     * Returns true if a parallelMap with the given batch size can be fused with the stage producing this stream.
+     */
+    private boolean fusable(int batchSize) {
+        if (pending == null || barrier) {
+            return false;
+        }
+        ParallelStream<?> upstream = pending.upstream;
+        return config == upstream.config
+                && sorted == upstream.sorted
+                && reorderWindow == upstream.reorderWindow
+                && batchSize == pending.batchSize;
+    }
+
+    private <R> void startStage(ParallelStream<R> r, int batchSize, ParallelFunction<? super T, ? extends R> mapper) {
+        start();
+        init();
+        if (hedging != null && mapper.isIdempotent()) {
+            pendingFutures = ConcurrentHashMap.newKeySet();
+            stage(r, batchSize, slot -> runHedged(slot, mapper), executor::execute);
+        } else {
+            stage(r, batchSize, slot -> runTask(slot, mapper), executor::execute);
+        }
+    }
+
+    /**
+     * Maps and accumulates items in parallel, the current thread being the producer.
+     * <br><br>
+     * Containers are kept per thread, a thread running at most one worker of the stage at a time, and tasks
+     * release their queue permits once their items are accumulated, so taking all permits waits for the
+     * last tasks and makes their containers visible.
+     */
+    private <U, A, R> R collect(int batchSize, ParallelFunction<? super T, ? extends U> mapper,
+                                Collector<? super U, A, R> collector) {
+        start();
+        init();
+        trace = config.getTrace() == null ? TraceRecorder.disabled() : config.getTrace().addStage(config.getJmxName());
+        metrics = new StageMetrics(null, executor);
+        if (config.getJmxName() != null) {
+            metrics.register(config.getJmxName());
+        }
+        Supplier<A> supplier = collector.supplier();
+        BiConsumer<A, ? super U> accumulator = collector.accumulator();
+        Map<Thread, A> containers = new ConcurrentHashMap<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        SlotPool<U> pool = new SlotPool<>(queueSemaphore, batchSize, null,
+                slot -> collectTask(slot, mapper, supplier, accumulator, containers, failure));
+        try {
+            try {
+                long seq = 0;
                 Iterator<T> it = iter();
-                while (it.hasNext() && !aborted.get()) {
-                    count++;
-                    T item = it.next();
-                    Future<QueueItem<R>> future = executor.submit(() -> {
-                        try {
-                            if (aborted.get()) return null;
-                            queueSemaphore.acquire();
-                            if (aborted.get()) return null;
-                            QueueData<R> data = new QueueData<>(mapper.apply(item), queueSemaphore);
-                            if (aborted.get()) return null;
-                            if (!sorted) r.queue.add(data);
-                            return data;
-                        } catch (Exception ex) {
-                            aborted.set(true);
-                            if (ex instanceof InterruptedException) {
-                                Thread.currentThread().interrupt();
-                            }
-                            QueueFailure<R> data = new QueueFailure<>(ex);
-                            if (!sorted) r.queue.add(data);
-                            return data;
-                        }
-                    });
-                    if (sorted) r.queue.add(new QueueFuture<>(future));
+                while (acquire(queueSemaphore, batchSize)) {
+                    QueueSlot<U> slot = pool.take(seq);
+                    while (!slot.isFull() && it.hasNext()) {
+                        slot.add(it.next());
+                    }
+                    int size = slot.getSize();
+                    if (size < batchSize) {
+                        queueSemaphore.release(batchSize - size);
+                    }
+                    if (size == 0) {
+                        slot.recycle();
+                        break;
+                    }
+                    metrics.addItemsIn(size);
+                    trace.record(seq++, TraceRecorder.Phase.SUBMIT);
+                    executor.execute(slot);
+                    if (size < batchSize) {
+                        break;
+                    }
                 }
-                r.queue.add(new QueueSize<>(count));
             } catch (Exception ex) {
                 aborted.set(true);
-                r.queue.add(new QueueFailure<>(ex));
-            } finally {
-                executor.shutdown();
+                if (ex instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                failure.compareAndSet(null, ex);
             }
-        });
+            if (failure.get() != null) {
+                cancel();
+            }
+            queueSemaphore.acquireUninterruptibly(config.getQueueSize());
+        } finally {
+            metrics.unregister();
+        }
+        Exception ex = failure.get();
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex != null) {
+            throw new ParallelException(ex);
+        }
+        A result = null;
+        for (A container : containers.values()) {
+            result = result == null ? container : collector.combiner().apply(result, container);
+        }
+        return collector.finisher().apply(result == null ? supplier.get() : result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <U, A> void collectTask(QueueSlot<U> slot, ParallelFunction<? super T, ? extends U> mapper,
+                                    Supplier<A> supplier, BiConsumer<A, ? super U> accumulator,
+                                    Map<Thread, A> containers, AtomicReference<Exception> failure) {
+        long seq = slot.getSeq();
+        int size = slot.getSize();
+        try {
+            if (aborted.get()) {
+                releaseValues(slot);
+                return;
+            }
+            long start = System.nanoTime();
+            trace.record(seq, TraceRecorder.Phase.START);
+            A container = containers.get(Thread.currentThread());
+            if (container == null) {
+                container = supplier.get();
+                containers.put(Thread.currentThread(), container);
+            }
+            for (int i = 0; i < size; i++) {
+                accumulator.accept(container, mapper.apply((T) slot.get(i)));
+                metrics.addItemOut();
+            }
+            long latency = System.nanoTime() - start;
+            trace.record(seq, TraceRecorder.Phase.END);
+            metrics.recordTask(latency, size);
+            if (adaptiveLimit != null) adaptiveLimit.record(latency);
+        } catch (Exception ex) {
+            aborted.set(true);
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            failure.compareAndSet(null, ex);
+        } finally {
+            slot.recycle();
+        }
+    }
+
+    /**
+     * Maps the items of this stream in parallel by chunks, each chunk being mapped by one task.
+     * <br><br>
+     * As for {@link #parallelMap(ParallelFunction)}, if this stream is produced by a parallelMap with the same
+     * configuration and ordering which has not been started yet, both stages are fused: the input of that
+     * parallelMap is chunked instead, and each task runs its mapper on the items of the chunk before mapping
+     * the chunk. The batch size of that parallelMap is then replaced by the chunk size.
+     */
+    private <R> ParallelStream<R> parallelMapChunks(int chunkSize, ParallelFunction<Object[], ? extends R> mapper) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        if (pending != null && fusable(pending.batchSize)) {
+            PendingStage<T> stage = pending;
+            pending = null;
+            fused = true;
+            return stage.upstream.chunks(chunkSize).parallelMap(chunk -> {
+                // the chunk is owned by the task, and its items are replaced by their results
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = stage.mapper.apply(chunk[i]);
+                }
+                return mapper.apply(chunk);
+            });
+        }
+        return chunks(chunkSize).parallelMap(mapper);
+    }
+
+    /**
+     * Returns a stream of the items of this stream grouped by chunks, with the same configuration and ordering.
+     */
+    private ParallelStream<Object[]> chunks(int chunkSize) {
+        ParallelStream<Object[]> r = next();
+        r.input = Chunks.of(stream(), chunkSize);
+        r.sorted = sorted;
+        r.reorderWindow = reorderWindow;
+        return r;
+    }
+
+    /**
+     * Returns a stream of the items of the chunks produced by a parallel stage, which is started.
+     */
+    @SuppressWarnings("unchecked")
+    static <R> ParallelStream<R> unchunk(ParallelStream<Object[]> chunks) {
+        ParallelStream<R> r = chunks.next();
+        r.input = chunks.stream().flatMap(chunk -> Arrays.stream((R[]) chunk));
+        r.stageExecutor = chunks.stageExecutor;
+        r.stageStats = chunks.stageStats;
+        return r;
+    }
+
+    private <R> ParallelStream<R> next() {
+        ParallelStream<R> r = new ParallelStream<>();
         r.config = config;
-        r.input = StreamSupport.stream(new QueueSpliterator<>(r.queue, aborted), false);
         return r;
     }
 
+    /**
+     * Starts the producer of a stage, which must have been initialized with {@link #init()}.
+     * <br><br>
+     * The stage is cancelled when the resulting stream is closed, or when it is abandoned, which is detected
+     * once its spliterator, and all the splits made by a parallel consumer, have been garbage collected.
+     * <br><br>
+     * The input spliterator is taken before starting the producer, so that the size of the input, when known,
+     * is reported as the estimated size of the resulting stream.
+     * <br><br>
+     * Items are read into slots taken from the pool of the stage, which carry them to the workers and their
+     * results to the consumer, and are recycled by the consumer, so a stage in a steady state does not allocate.
+     *
+     * @param task the task run by workers on each slot, or null if the dispatcher does not run slots
+     */
+    private <R> ParallelStream<R> stage(ParallelStream<R> r, int batchSize, Consumer<QueueSlot<R>> task,
+                                        Dispatcher<R> dispatcher) {
+        trace = config.getTrace() == null ? TraceRecorder.disabled() : config.getTrace().addStage(config.getJmxName());
+        QueueChannel<R> queue = trace.isEnabled() ? new TracingChannel<>(channel(), trace) : channel();
+        StageOutput<R> out = new StageOutput<>(queue, sorted ? new ReorderBuffer<>(reorderWindow(), queue) : null);
+        metrics = new StageMetrics(queue, executor);
+        if (config.getJmxName() != null) {
+            metrics.register(config.getJmxName());
+        }
+        Spliterator<T> source = spliter();
+        QueueSpliterator<R> spliterator = new QueueSpliterator<>(queue, aborted, this::cancel, metrics, trace,
+                sorted, source.getExactSizeIfKnown());
+        SlotPool<R> pool = new SlotPool<>(queueSemaphore, batchSize, out, task);
+        output = out;
+        consumer = new WeakReference<>(spliterator.getShared());
+        // the producer blocks on permits, so it must not run on the common pool, where long pipelines
+        // could use all threads and dead-lock
+        CompletableFuture.runAsync(() -> {
+            try {
+                long count = 0;
+                long seq = 0;
+                Iterator<T> it = Spliterators.iterator(source);
+                // permits are taken before reading the next items, so the number of items read but not yet
+                // consumed never exceeds queueSize, whatever the size of the input
+                while (acquire(queueSemaphore, batchSize)) {
+                    if (sorted && !acquire(out.getReorder().getSemaphore(), 1)) {
+                        queueSemaphore.release(batchSize);
+                        break;
+                    }
+                    QueueSlot<R> slot = pool.take(seq);
+                    while (!slot.isFull() && it.hasNext()) {
+                        slot.add(it.next());
+                    }
+                    int size = slot.getSize();
+                    if (size < batchSize) {
+                        queueSemaphore.release(batchSize - size);
+                    }
+                    if (size == 0) {
+                        slot.recycle();
+                        if (sorted) out.getReorder().getSemaphore().release();
+                        break;
+                    }
+                    count += size;
+                    metrics.addItemsIn(size);
+                    trace.record(seq++, TraceRecorder.Phase.SUBMIT);
+                    dispatcher.dispatch(slot);
+                    if (size < batchSize) {
+                        break;
+                    }
+                }
+                queue.add(new QueueSize<>(count));
+            } catch (Exception ex) {
+                aborted.set(true);
+                out.fail(ex);
+            }
+        }, producer);
+        r.stageExecutor = executor;
+        r.stageStats = metrics;
+        r.input = StreamSupport.stream(spliterator, false).onClose(this::cancel);
+        return r;
+    }
+
+    /**
+     * Maps the items of a slot, and publishes it with the results.
+     */
+    @SuppressWarnings("unchecked")
+    private <R> void runTask(QueueSlot<R> slot, ParallelFunction<? super T, ? extends R> mapper) {
+        StageOutput<R> out = slot.getOutput();
+        long seq = slot.getSeq();
+        int size = slot.getSize();
+        try {
+            if (aborted.get()) {
+                release(slot);
+                return;
+            }
+            long start = System.nanoTime();
+            trace.record(seq, TraceRecorder.Phase.START);
+            // results replace items in place, the slot being owned by this task
+            for (int i = 0; i < size; i++) {
+                slot.set(i, mapper.apply((T) slot.get(i)));
+                if (aborted.get()) {
+                    release(slot);
+                    return;
+                }
+            }
+            long latency = System.nanoTime() - start;
+            trace.record(seq, TraceRecorder.Phase.END);
+            metrics.recordTask(latency, size);
+            if (adaptiveLimit != null) adaptiveLimit.record(latency);
+            out.publish(seq, slot);
+        } catch (Exception ex) {
+            aborted.set(true);
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            out.fail(ex);
+        }
+    }
+
+    /**
+     * Same as {@link #runTask(QueueSlot, ParallelFunction)}, with a second attempt started by the watchdog
+     * of the stage if the first one takes too long.
+     */
+    private <R> void runHedged(QueueSlot<R> slot, ParallelFunction<? super T, ? extends R> mapper) {
+        if (aborted.get()) {
+            release(slot);
+            return;
+        }
+        // attempts cannot replace items in place, as the other attempt may still be reading them
+        Object[] items = new Object[slot.getSize()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = slot.get(i);
+        }
+        Hedging.Call call = new Hedging.Call();
+        trace.record(slot.getSeq(), TraceRecorder.Phase.START);
+        ScheduledFuture<?> timer = hedging.watch(call, () -> {
+            metrics.addHedgedTask();
+            Set<Future<?>> futures = pendingFutures;
+            // tracked until done, so that cancel() interrupts it like the tasks of the stage
+            FutureTask<Void> hedge = new FutureTask<Void>(() -> attempt(call, 1, slot, items, mapper), null) {
+                @Override
+                protected void done() {
+                    futures.remove(this);
+                }
+            };
+            futures.add(hedge);
+            try {
+                hedgeExecutor.execute(hedge);
+            } catch (RejectedExecutionException ex) {
+                // the first attempt is still running
+                futures.remove(hedge);
+            }
+        });
+        attempt(call, 0, slot, items, mapper);
+        if (timer != null) timer.cancel(false);
+    }
+
+    /**
+     * Maps the items of a slot, and publishes it with the results if this attempt is the first to complete.
+     *
+     * @param attempt 0 for the first attempt, 1 for the hedge
+     */
+    @SuppressWarnings("unchecked")
+    private <R> void attempt(Hedging.Call call, int attempt, QueueSlot<R> slot, Object[] items,
+                             ParallelFunction<? super T, ? extends R> mapper) {
+        if (!call.enter(attempt)) {
+            return;
+        }
+        Object[] results = new Object[items.length];
+        Exception failure = null;
+        try {
+            for (int i = 0; i < items.length && !aborted.get(); i++) {
+                results[i] = mapper.apply((T) items[i]);
+            }
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        // only the winner owns the slot from here
+        if (!call.complete(attempt)) {
+            releaseResults(results, items);
+            return;
+        }
+        StageOutput<R> out = slot.getOutput();
+        long seq = slot.getSeq();
+        if (failure != null) {
+            aborted.set(true);
+            if (failure instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            releaseResults(results, items);
+            out.fail(failure);
+            return;
+        }
+        if (aborted.get()) {
+            releaseResults(results, items);
+            release(slot);
+            return;
+        }
+        for (int i = 0; i < results.length; i++) {
+            slot.set(i, results[i]);
+        }
+        // the latency of the item, and not of the winning attempt, or hedging would lower its own threshold
+        long latency = System.nanoTime() - call.getStart();
+        trace.record(seq, TraceRecorder.Phase.END);
+        metrics.recordTask(latency, results.length);
+        hedging.record(latency);
+        if (adaptiveLimit != null) adaptiveLimit.record(latency);
+        out.publish(seq, slot);
+    }
+
+    /**
+     * Releases the results of an attempt which are not published, except those which are the items themselves,
+     * as a pass-through mapper returns the same {@link LimitedItem} for both attempts.
+     */
+    private static void releaseResults(Object[] results, Object[] items) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != items[i]) {
+                release(results[i]);
+            }
+        }
+    }
+
+    /**
+     * Stops the stage started from this stream, and the stages before it.
+     * <br><br>
+     * The producer and running tasks are interrupted, pending tasks and results are removed,
+     * and their {@link LimitedItem}s are released. A consumer still waiting for results gets a
+     * {@link CancellationException}.
+     */
+    private void cancel() {
+        if (!cancelled.compareAndSet(false, true)) {
+            return;
+        }
+        aborted.set(true);
+        if (producer != null) {
+            producer.cancel();
+        }
+        if (executor != null) {
+            // pending tasks see the abort, so running them only releases their items
+            for (Runnable task : executor.cancel()) {
+                task.run();
+            }
+        }
+        if (pendingFutures != null) {
+            for (Future<?> future : pendingFutures) {
+                future.cancel(true);
+            }
+        }
+        if (output != null) {
+            output.drain(ParallelStream::release);
+            output.fail(new CancellationException("stream closed"));
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        if (input != null) {
+            input.close();
+        }
+    }
+
+    private static void release(QueueItem<?> item) {
+        if (item instanceof QueueSlot) {
+            QueueSlot<?> slot = (QueueSlot<?>) item;
+            releaseValues(slot);
+            slot.recycle();
+        }
+    }
+
+    private static void releaseValues(QueueSlot<?> slot) {
+        for (int i = 0; i < slot.getSize(); i++) {
+            release(slot.get(i));
+        }
+    }
+
+    private static void release(Object value) {
+        if (value instanceof LimitedItem) {
+            ((LimitedItem<?>) value).release();
+        }
+    }
+
+    private static Exception unwrap(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex instanceof Exception ? (Exception) ex : new ExecutionException(ex);
+    }
+
+    private <R> QueueChannel<R> channel() {
+        // each data item holds at least one queue permit, plus the size and a few failures
+        int capacity = config.getQueueSize() + CHANNEL_EXTRA_CAPACITY;
+        if (config.getWaitStrategy() == null) {
+            return new BlockingChannel<>(capacity);
+        }
+        return new RingChannel<>(capacity, config.getWaitStrategy());
+    }
+
+    private int reorderWindow() {
+        if (reorderWindow > 0) {
+            return Math.min(reorderWindow, config.getQueueSize());
+        }
+        return config.getQueueSize();
+    }
+
+    /**
+     * Waits for permits of the semaphore, checking regularly if the stream has been aborted or abandoned.
+     *
+     * @return true if the permits have been acquired, false if the stream is aborted
+     */
+    private boolean acquire(Semaphore semaphore, int permits) throws InterruptedException {
+        if (!aborted.get() && semaphore.tryAcquire(permits)) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            while (!aborted.get() && !abandoned()) {
+                if (semaphore.tryAcquire(permits, ABORT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            metrics.addProducerWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Cancels the stage if its consumer has been garbage collected.
+     */
+    private boolean abandoned() {
+        if (consumer != null && consumer.get() == null) {
+            cancel();
+            return true;
+        }
+        return false;
+    }
+
     //
 
     /**
@@ -179,8 +1175,85 @@ public class ParallelStream<T> {
         });
     }
 
+    /**
+     * Same as {@link #limited(int)}, with items weighted, for example by their size in bytes, so that the
+     * total weight of the items not yet released stays within a budget.
+     * <br><br>
+     * Items are admitted in input order, so an item waiting for enough weight to be released is never
+     * starved by lighter items arriving after it. An item heavier than the budget holds the whole budget:
+     * it waits until all previous items have been released, and is then processed alone.
+     * <br><br>
+     * Use {@link LimitedItem#release()} to give back the weight of an item.
+     *
+     * @param weigher the function returning the weight of an item, called by the producer
+     * @param budget  the maximum total weight of the items not yet released
+     * @return a new `ParallelStream` where each item is wrapped in a `LimitedItem` holding its weight
+     */
+    public ParallelStream<LimitedItem<T>> limited(ParallelToLongFunction<? super T> weigher, long budget) {
+        WeightedLimiter limiter = new WeightedLimiter(budget);
+        return map(e -> new LimitedItem<>(e, limiter, limiter.acquire(weigher.applyAsLong(e))));
+    }
+
     public ParallelStream<T> sorted() {
         sorted = true;
         return this;
     }
+
+    /**
+     * Same as {@link #sorted()}, with a bounded reorder window.
+     * <br><br>
+     * Results are kept in a reorder buffer until all previous results are available. The window is the
+     * maximum distance between the oldest pending item and the last item read: when it is reached, no more
+     * items are read until the oldest pending item is done. It is capped by the queue size, which is also
+     * the default.
+     *
+     * @param window the size of the reorder window
+     */
+    public ParallelStream<T> sorted(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be greater than 0");
+        }
+        sorted = true;
+        reorderWindow = window;
+        return this;
+    }
+
+    /**
+     * A parallelMap stage which has not been started yet, with the mappers of the stages fused into it.
+     */
+    private static class PendingStage<R> {
+        private final ParallelStream<?> upstream;
+        private final int batchSize;
+        private final ParallelFunction<Object, ? extends R> mapper;
+
+        @SuppressWarnings("unchecked")
+        private PendingStage(ParallelStream<?> upstream, int batchSize, ParallelFunction<?, ? extends R> mapper) {
+            this.upstream = upstream;
+            this.batchSize = batchSize;
+            this.mapper = (ParallelFunction<Object, ? extends R>) mapper;
+        }
+
+        private <V> PendingStage<V> then(ParallelFunction<? super R, ? extends V> next) {
+            ParallelFunction<Object, ? extends R> first = mapper;
+            ParallelFunction<Object, V> both = e -> next.apply(first.apply(e));
+            // the fused mapper can only be hedged if both are idempotent
+            return new PendingStage<>(upstream, batchSize,
+                    first.isIdempotent() && next.isIdempotent() ? ParallelFunction.idempotent(both) : both);
+        }
+
+        private void start(ParallelStream<R> r) {
+            upstream.startStage(r, batchSize, mapper);
+        }
+
+        private <A, V> V collect(Collector<? super R, A, V> collector) {
+            return upstream.collect(batchSize, mapper, collector);
+        }
+    }
+
+    /**
+     * Sends a slot of items read by the producer to the workers of a stage.
+     */
+    private interface Dispatcher<R> {
+        void dispatch(QueueSlot<R> slot) throws Exception;
+    }
 }
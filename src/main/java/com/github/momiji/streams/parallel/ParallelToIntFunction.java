@@ -0,0 +1,22 @@
+package com.github.momiji.streams.parallel;
+
+/**
+ * Represents a function that accepts one argument and produces an int-valued result.
+ * Compared to {@link java.util.function.ToIntFunction}, this interface throws an exception.
+ *
+ * <p>This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #applyAsInt(Object)}.
+ *
+ * @param <T> the type of the input to the function
+ */
+@FunctionalInterface
+public interface ParallelToIntFunction<T> {
+
+    /**
+     * Applies this function to the given argument.
+     *
+     * @param t the function argument
+     * @return the function result
+     */
+    int applyAsInt(T t) throws Exception;
+}
@@ -0,0 +1,62 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.TraceRecorder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Records the lifecycle of each item of the traced stages, to find stragglers and head-of-line stalls.
+ * <br><br>
+ * For each item, a stage records when it is submitted by the producer, started and ended by a worker, enqueued
+ * in the output channel, which is delayed by the reorder buffer when sorted, and consumed, with the thread doing
+ * it. A batch is traced as one item.
+ * <br><br>
+ * Events go to a preallocated ring, so the oldest events are overwritten once the capacity is reached. The ring
+ * can be dumped as a Chrome trace, to be opened in chrome://tracing or Perfetto. When running on Java 11 or
+ * later, events are also emitted as JDK Flight Recorder events, which are only recorded while a recording is
+ * running.
+ * <br><br>
+ * A trace can be shared by all stages of a pipeline, to see how they overlap.
+ *
+ * @see ParallelStream#trace(ParallelTrace)
+ */
+public class ParallelTrace {
+    private final TraceRecorder recorder;
+
+    /**
+     * @param capacity the number of events kept, rounded up to a power of 2
+     */
+    public ParallelTrace(int capacity) {
+        this.recorder = new TraceRecorder(capacity);
+    }
+
+    /**
+     * Adds a traced stage.
+     *
+     * @param name the name of the stage in the trace, or null to name it after its index
+     */
+    TraceRecorder.Stage addStage(String name) {
+        return recorder.addStage(name);
+    }
+
+    /**
+     * Writes the events still in the ring as a Chrome trace in JSON format.
+     * <br><br>
+     * Each item is an async span from its submission to its consumption, split into its waiting, mapping,
+     * reordering and output phases, and the mapping is also shown on the worker thread.
+     */
+    public void writeChromeTrace(Appendable out) throws IOException {
+        recorder.writeChromeTrace(out);
+    }
+
+    public String toChromeTrace() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeChromeTrace(sb);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return sb.toString();
+    }
+}
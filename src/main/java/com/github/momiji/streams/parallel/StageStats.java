@@ -0,0 +1,87 @@
+package com.github.momiji.streams.parallel;
+
+/**
+ * Statistics of a parallel stage, to find which stage of a pipeline is the bottleneck.
+ * <br><br>
+ * They are recorded by the producer, the workers and the consumer of the stage without any lock, so they are
+ * always on, and values read while the stage is running are only snapshots. Stages can also be exposed as
+ * JMX MXBeans with {@link ParallelStream#jmx(String)}.
+ * <br><br>
+ * A stage with a growing backlog and a consumer that rarely waits is limited by its workers, while a stage
+ * whose producer waits for queue permits is limited by its consumer, the next stage.
+ */
+public interface StageStats {
+
+    /**
+     * Returns the number of items read from the input of the stage.
+     */
+    long getItemsIn();
+
+    /**
+     * Returns the number of results consumed from the output of the stage.
+     */
+    long getItemsOut();
+
+    /**
+     * Returns the number of entries waiting for the consumer in the output channel, a batch being one entry.
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of tasks waiting for a worker.
+     */
+    int getBacklog();
+
+    /**
+     * Returns the number of workers currently running tasks of the stage.
+     */
+    int getActiveWorkers();
+
+    /**
+     * Returns the current concurrency limit of the stage.
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * Returns the total time the producer has been blocked waiting for queue permits, because results were
+     * not consumed fast enough, or for the reorder window or in-flight permits.
+     */
+    long getProducerWaitNanos();
+
+    /**
+     * Returns the total time the consumer has been blocked waiting for results.
+     */
+    long getConsumerWaitNanos();
+
+    /**
+     * Returns the number of mapper executions recorded in the latency histogram.
+     */
+    long getTaskCount();
+
+    double getTaskLatencyMeanNanos();
+
+    long getTaskLatencyP50Nanos();
+
+    long getTaskLatencyP90Nanos();
+
+    long getTaskLatencyP99Nanos();
+
+    long getTaskLatencyMaxNanos();
+
+    /**
+     * Returns the number of second attempts started for tasks running longer than usual, when hedging.
+     *
+     * @see ParallelStream#hedged(double, double)
+     */
+    long getHedgedTasks();
+
+    /**
+     * Returns the latency of mapper executions below which the given percentage of executions fall.
+     * <br><br>
+     * For a batch, each item is recorded with the mean latency of the items of the batch. For an async mapper,
+     * the latency is the time until its stage completes.
+     *
+     * @param percentile the percentage, between 0 and 100
+     */
+    long getTaskLatencyNanos(double percentile);
+}
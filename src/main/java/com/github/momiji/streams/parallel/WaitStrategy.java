@@ -0,0 +1,42 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.WaitStrategies;
+
+/**
+ * Represents how a thread waits for a lock-free channel to become ready, trading CPU for latency.
+ *
+ * <p>This is a <a href="package-summary.html">functional interface</a>
+ * whose functional method is {@link #idle(int)}.
+ */
+@FunctionalInterface
+public interface WaitStrategy {
+
+    /**
+     * Waits a little before the caller checks its condition again.
+     *
+     * @param attempt the number of times the caller already waited for the same condition, starting at 0
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void idle(int attempt) throws InterruptedException;
+
+    /**
+     * Spins without releasing the CPU, for the lowest latency at the cost of a full core per waiting thread.
+     */
+    static WaitStrategy busySpin() {
+        return WaitStrategies.BUSY_SPIN;
+    }
+
+    /**
+     * Spins a little, then yields the CPU to other threads between checks.
+     */
+    static WaitStrategy yielding() {
+        return WaitStrategies.YIELD;
+    }
+
+    /**
+     * Spins a little, yields a little, then parks for short periods between checks.
+     */
+    static WaitStrategy parking() {
+        return WaitStrategies.PARK;
+    }
+}
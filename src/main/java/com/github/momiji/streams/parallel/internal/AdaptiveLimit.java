@@ -0,0 +1,89 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Adjusts a concurrency limit at runtime from the observed task latency and throughput,
+ * using additive increase and multiplicative decrease.
+ * <br><br>
+ * Samples are grouped in windows of at least as many samples as the current limit. At the end of a window:
+ * <ul>
+ *     <li>the no-load latency is the lowest average latency seen; it can only rise while the limit is at its
+ *     minimum, the load being then the lowest possible, so that it follows long-term changes of the tasks;</li>
+ *     <li>if the average latency is more than twice the no-load latency, the downstream is saturated and the
+ *     limit is decreased by 10%;</li>
+ *     <li>otherwise, if the number of running tasks given by Little's law (throughput times latency) is close
+ *     to the limit, the limit is what bounds the throughput and it is increased by one.</li>
+ * </ul>
+ * This is intended for slow tasks like remote calls, as recording a sample takes a lock.
+ */
+public class AdaptiveLimit {
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    private static final double UTILIZATION = 0.8;
+    private static final double BASELINE_DRIFT = 0.1;
+    private static final int MIN_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final IntConsumer listener;
+    private volatile int limit;
+    // current window, guarded by this
+    private long windowStart = System.nanoTime();
+    private int samples;
+    private long latencySum;
+    private double baseline;
+
+    /**
+     * @param listener called with the new limit each time it changes
+     */
+    public AdaptiveLimit(int minLimit, int maxLimit, int initialLimit, IntConsumer listener) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("minLimit must be greater than 0");
+        }
+        if (maxLimit < minLimit) {
+            throw new IllegalArgumentException("maxLimit must be greater than or equal to minLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.listener = listener;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Records the latency of a task.
+     */
+    public synchronized void record(long latencyNanos) {
+        samples++;
+        latencySum += latencyNanos;
+        if (samples < Math.max(MIN_SAMPLES, limit)) {
+            return;
+        }
+        long now = System.nanoTime();
+        double latency = (double) latencySum / samples;
+        double throughput = samples / (double) Math.max(1, now - windowStart);
+        double running = throughput * latency;
+        if (baseline == 0 || latency < baseline) {
+            baseline = latency;
+        } else if (limit == minLimit) {
+            baseline += (latency - baseline) * BASELINE_DRIFT;
+        }
+        int next = limit;
+        if (latency > baseline * TOLERANCE) {
+            next = Math.max(minLimit, Math.min(limit - 1, (int) (limit * BACKOFF)));
+        } else if (running >= limit * UTILIZATION) {
+            next = Math.min(maxLimit, limit + 1);
+        }
+        windowStart = now;
+        samples = 0;
+        latencySum = 0;
+        if (next != limit) {
+            limit = next;
+            listener.accept(next);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.momiji.streams.parallel.internal;
+
+import com.github.momiji.streams.parallel.ParallelException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded channel backed by an {@link ArrayBlockingQueue}, where waiting threads are blocked.
+ * <br><br>
+ * The capacity must be large enough for all items that can be in the channel at the same time,
+ * which is bounded by the queue permits of the stage, otherwise writers wait for free slots.
+ * Unlike a linked queue, adding an item does not allocate.
+ */
+public class BlockingChannel<T> implements QueueChannel<T> {
+    private final BlockingQueue<QueueItem<T>> queue;
+
+    public BlockingChannel(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void add(QueueItem<T> item) {
+        if (queue.offer(item)) {
+            return;
+        }
+        try {
+            queue.put(item);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ParallelException(ex);
+        }
+    }
+
+    @Override
+    public QueueItem<T> take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public QueueItem<T> poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.BaseStream;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Groups the items of a stream into arrays, so that primitive items can go through a parallel stage
+ * without being boxed: the stage maps and queues one array per chunk instead of one object per item.
+ * <br><br>
+ * All chunks are full, except the last one which is trimmed. Closing the stream of chunks closes the input.
+ */
+public class Chunks {
+    public static final int DEFAULT_SIZE = 256;
+
+    private Chunks() {
+    }
+
+    public static <T> Stream<Object[]> of(Stream<T> input, int size) {
+        Iterator<T> it = input.iterator();
+        return stream(input, action -> {
+            Object[] chunk = new Object[size];
+            int n = 0;
+            while (n < size && it.hasNext()) {
+                chunk[n++] = it.next();
+            }
+            return accept(action, n == size ? chunk : Arrays.copyOf(chunk, n), n);
+        });
+    }
+
+    public static Stream<int[]> ofInt(IntStream input, int size) {
+        PrimitiveIterator.OfInt it = input.iterator();
+        return stream(input, action -> {
+            int[] chunk = new int[size];
+            int n = 0;
+            while (n < size && it.hasNext()) {
+                chunk[n++] = it.nextInt();
+            }
+            return accept(action, n == size ? chunk : Arrays.copyOf(chunk, n), n);
+        });
+    }
+
+    public static Stream<long[]> ofLong(LongStream input, int size) {
+        PrimitiveIterator.OfLong it = input.iterator();
+        return stream(input, action -> {
+            long[] chunk = new long[size];
+            int n = 0;
+            while (n < size && it.hasNext()) {
+                chunk[n++] = it.nextLong();
+            }
+            return accept(action, n == size ? chunk : Arrays.copyOf(chunk, n), n);
+        });
+    }
+
+    public static Stream<double[]> ofDouble(DoubleStream input, int size) {
+        PrimitiveIterator.OfDouble it = input.iterator();
+        return stream(input, action -> {
+            double[] chunk = new double[size];
+            int n = 0;
+            while (n < size && it.hasNext()) {
+                chunk[n++] = it.nextDouble();
+            }
+            return accept(action, n == size ? chunk : Arrays.copyOf(chunk, n), n);
+        });
+    }
+
+    private static <C> boolean accept(Consumer<? super C> action, C chunk, int n) {
+        if (n == 0) {
+            return false;
+        }
+        action.accept(chunk);
+        return true;
+    }
+
+    private static <C> Stream<C> stream(BaseStream<?, ?> input, Reader<C> reader) {
+        Spliterator<C> spliterator = new Spliterators.AbstractSpliterator<C>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super C> action) {
+                return reader.read(action);
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(input::close);
+    }
+
+    /**
+     * Reads the next chunk, returning false when the input is exhausted.
+     */
+    private interface Reader<C> {
+        boolean read(Consumer<? super C> action);
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when to start a second attempt of a task running longer than usual, to cut the tail latency of
+ * mappers like remote calls, where a few calls take much longer than the others for reasons unrelated to
+ * their arguments.
+ * <br><br>
+ * The threshold is the given percentile of the latencies of the last {@value #WINDOW} tasks, recomputed every
+ * {@value #REFRESH} tasks, and no task is hedged before {@value #MIN_SAMPLES} tasks have completed. A single
+ * watchdog thread, shared by all stages, starts the second attempts, as long as their number stays below the
+ * budget, a fraction of the number of tasks, so that hedging a slow downstream cannot double its load.
+ */
+public class Hedging {
+    static final int WINDOW = 256;
+    static final int REFRESH = 16;
+    static final int MIN_SAMPLES = 20;
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "parallel-hedging");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // most tasks complete before their deadline, do not keep their timers until then
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final double percentile;
+    private final double budget;
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    // guarded by this
+    private final long[] window = new long[WINDOW];
+    private long samples;
+    private volatile long threshold;
+
+    /**
+     * @param percentile the percentile of the recent latencies after which a task is hedged, between 0 and 100
+     * @param budget     the maximum number of second attempts, as a fraction of the number of tasks
+     */
+    public Hedging(double percentile, double budget) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget must be greater than 0");
+        }
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the latency after which a task is hedged, or 0 while there are not enough samples.
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Records the latency of a completed task.
+     */
+    public synchronized void record(long nanos) {
+        window[(int) (samples++ % WINDOW)] = nanos;
+        if (samples >= MIN_SAMPLES && samples % REFRESH == 0) {
+            int n = (int) Math.min(samples, WINDOW);
+            long[] sorted = Arrays.copyOf(window, n);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * n);
+            threshold = Math.max(1, sorted[Math.max(0, rank - 1)]);
+        }
+    }
+
+    /**
+     * Watches a task which is starting, running the hedge on the watchdog thread if the task is still running
+     * after the threshold and the budget allows it. The hedge must return quickly.
+     *
+     * @return the timer, to cancel once the task completes, or null if the task is not watched
+     */
+    public ScheduledFuture<?> watch(Call call, Runnable hedge) {
+        tasks.incrementAndGet();
+        long delay = threshold;
+        if (delay == 0) {
+            return null;
+        }
+        return WATCHDOG.schedule(() -> {
+            if (!call.isDone() && acquire()) {
+                hedge.run();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private boolean acquire() {
+        for (; ; ) {
+            long count = hedges.get();
+            if (count + 1 > budget * tasks.get()) {
+                return false;
+            }
+            if (hedges.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The attempts of a task, the first one to complete winning, and the other being interrupted.
+     */
+    public static final class Call {
+        private final long start = System.nanoTime();
+        private final Thread[] threads = new Thread[2];
+        // guarded by this
+        private int winner = -1;
+
+        /**
+         * Returns the time the task was first attempted, as given by {@link System#nanoTime()}.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        public synchronized boolean isDone() {
+            return winner >= 0;
+        }
+
+        /**
+         * Starts an attempt on the current thread.
+         *
+         * @param attempt 0 for the first attempt, 1 for the hedge
+         * @return false if the task is already done, in which case the attempt must not run
+         */
+        public synchronized boolean enter(int attempt) {
+            if (winner >= 0) {
+                return false;
+            }
+            threads[attempt] = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * Completes an attempt, interrupting the other one if it wins.
+         *
+         * @return true if the attempt wins, and must publish its results, false if it must discard them
+         */
+        public boolean complete(int attempt) {
+            boolean won;
+            synchronized (this) {
+                threads[attempt] = null;
+                won = winner < 0;
+                if (won) {
+                    winner = attempt;
+                    Thread other = threads[1 - attempt];
+                    if (other != null) other.interrupt();
+                }
+            }
+            if (!won) {
+                // the winner may have interrupted this thread after the mapper returned
+                Thread.interrupted();
+            }
+            return won;
+        }
+    }
+}
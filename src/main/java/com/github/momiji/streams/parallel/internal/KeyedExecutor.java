@@ -0,0 +1,48 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on an executor, tasks with the same key being run one at a time in submission order.
+ * <br><br>
+ * Each key with pending tasks has its own lane, a {@link LimitedExecutor} running one task at a time,
+ * and lanes are removed as soon as they have no more pending tasks, so the number of lanes is bounded
+ * by the number of pending tasks and not by the number of distinct keys.
+ */
+public class KeyedExecutor {
+    private static final Object NULL_KEY = new Object();
+
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+
+    public KeyedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(Object key, Runnable task) {
+        Object laneKey = key == null ? NULL_KEY : key;
+        Lane lane = lanes.compute(laneKey, (k, l) -> {
+            if (l == null) l = new Lane(new LimitedExecutor(executor, 1));
+            l.pending++;
+            return l;
+        });
+        lane.executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                lanes.computeIfPresent(laneKey, (k, l) -> --l.pending == 0 ? null : l);
+            }
+        });
+    }
+
+    private static class Lane {
+        private final LimitedExecutor executor;
+        // only updated inside compute(), which is atomic for a given key
+        private int pending;
+
+        private Lane(LimitedExecutor executor) {
+            this.executor = executor;
+        }
+    }
+}
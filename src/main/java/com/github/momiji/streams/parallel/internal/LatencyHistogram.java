@@ -0,0 +1,104 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds, with a bounded relative error.
+ * <br><br>
+ * Like HdrHistogram, values are counted in log-linear buckets: each power of 2 is split into 16 sub-buckets,
+ * so values are recorded with a relative error of at most 1/16, in a fixed array of counters covering the whole
+ * range of long values. Recording is one atomic increment, without
+ * allocation nor lock, so it can be left on in production.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // linear buckets for values below SUB_BUCKETS, then SUB_BUCKETS buckets for each remaining power of 2
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value.
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Records the same value several times, for example the mean latency of the items of a batch.
+     */
+    public void record(long nanos, int times) {
+        if (nanos < 0) nanos = 0;
+        counts.addAndGet(index(nanos), times);
+        count.add(times);
+        sum.add(nanos * times);
+        max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall, as the highest value
+     * of its bucket, or 0 if no value has been recorded.
+     *
+     * @param percentile the percentage, between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            total += snapshot[i] = counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS | (index & (SUB_BUCKETS - 1));
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a shared executor, with at most a given number of tasks running at the same time.
+ * <br><br>
+ * Tasks are kept in a local queue, and up to maxConcurrency workers are started on the shared executor.
+ * Each worker runs tasks from the local queue until it is empty, so a stage does not pay one submission
+ * to the shared executor per task, and never takes more threads from it than its own limit.
+ * <br><br>
+ * The limit can be changed at any time: more workers are started when it is raised, and workers stop after
+ * their current task when it is lowered.
+ * <br><br>
+ * When the number of pending tasks is bounded, a capacity can be given, in which case the local queue is a
+ * preallocated {@link RingBuffer}, so submitting a task does not allocate. Workers then also yield a few times
+ * before stopping on an empty queue, as starting a worker allocates, and a fast producer would otherwise restart
+ * one for nearly every task.
+ * <br><br>
+ * With a time slice, a worker which has been running tasks for longer gives its thread back to the shared
+ * executor by resubmitting itself, so that a scheduler sharing threads between several executors can run
+ * others in between.
+ * <br><br>
+ * As the shared executor is not owned, it is never shut down: {@link #cancel()} removes pending tasks and only
+ * interrupts the threads while they are running tasks of this executor.
+ */
+public class LimitedExecutor implements Executor {
+    private static final int IDLE_SPINS = 64;
+
+    private final Executor executor;
+    private volatile int maxConcurrency;
+    private final Queue<Runnable> tasks;
+    private final int idleSpins;
+    private final Runnable work = this::work;
+    private final AtomicInteger workers = new AtomicInteger();
+    private final Set<Worker> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private volatile long timeSlice;
+
+    public LimitedExecutor(Executor executor, int maxConcurrency) {
+        this(executor, maxConcurrency, new ConcurrentLinkedQueue<>(), 0);
+    }
+
+    /**
+     * @param capacity the maximum number of pending tasks, above which {@link #execute(Runnable)} waits
+     *                 for workers to take tasks
+     */
+    public LimitedExecutor(Executor executor, int maxConcurrency, int capacity) {
+        this(executor, maxConcurrency, new RingBuffer<>(capacity), IDLE_SPINS);
+    }
+
+    private LimitedExecutor(Executor executor, int maxConcurrency, Queue<Runnable> tasks, int idleSpins) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+        }
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.tasks = tasks;
+        this.idleSpins = idleSpins;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+        }
+        int previous = this.maxConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        for (int i = previous; i < maxConcurrency; i++) {
+            startWorker();
+        }
+    }
+
+    /**
+     * Sets the time, in nanoseconds, after which a worker resubmits itself if tasks are pending, 0 to disable it.
+     */
+    public void setTimeSlice(long timeSlice) {
+        this.timeSlice = timeSlice;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker. This walks the local queue, so it is only meant
+     * for monitoring.
+     */
+    public int getQueuedTasks() {
+        return tasks.size();
+    }
+
+    /**
+     * Returns the number of workers currently started on the shared executor.
+     */
+    public int getWorkers() {
+        return workers.get();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        while (!tasks.offer(task)) {
+            // a worker may have taken a task without freeing its slot yet, it will shortly
+            Thread.yield();
+        }
+        startWorker();
+    }
+
+    private void startWorker() {
+        for (; ; ) {
+            int count = workers.get();
+            if (count >= maxConcurrency || tasks.isEmpty()) {
+                return;
+            }
+            if (workers.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        resubmit();
+    }
+
+    private void resubmit() {
+        try {
+            executor.execute(work);
+        } catch (RuntimeException ex) {
+            workers.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Removes all pending tasks and interrupts running ones. Tasks submitted after are still run.
+     *
+     * @return the removed tasks
+     */
+    public List<Runnable> cancel() {
+        cancelled = true;
+        List<Runnable> removed = new ArrayList<>();
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            removed.add(task);
+        }
+        for (Worker worker : running) {
+            worker.interrupt();
+        }
+        return removed;
+    }
+
+    private void work() {
+        Worker worker = new Worker(Thread.currentThread());
+        running.add(worker);
+        boolean retired = false;
+        boolean yielded = false;
+        long slice = timeSlice;
+        long start = slice > 0 ? System.nanoTime() : 0;
+        try {
+            Runnable task;
+            while (!(retired = retire()) && (task = poll()) != null) {
+                task.run();
+                if (slice > 0 && System.nanoTime() - start >= slice && !tasks.isEmpty()) {
+                    yielded = true;
+                    break;
+                }
+            }
+        } finally {
+            running.remove(worker);
+            worker.detach();
+            if (yielded) {
+                // still counted, the worker goes back to the end of the queue of the shared executor
+                resubmit();
+            } else if (!retired) {
+                workers.decrementAndGet();
+                // a task may have been added after the last poll() but before the decrement
+                startWorker();
+            }
+        }
+    }
+
+    /**
+     * Returns the next task, yielding up to idleSpins times while the queue is empty.
+     */
+    private Runnable poll() {
+        Runnable task = tasks.poll();
+        for (int i = 0; task == null && i < idleSpins && !cancelled; i++) {
+            Thread.yield();
+            task = tasks.poll();
+        }
+        return task;
+    }
+
+    /**
+     * Stops the current worker if there are more workers than the limit.
+     *
+     * @return true if the worker must stop, in which case it is no more counted
+     */
+    private boolean retire() {
+        for (; ; ) {
+            int count = workers.get();
+            if (count <= maxConcurrency) {
+                return false;
+            }
+            if (workers.compareAndSet(count, count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A thread running tasks of this executor, which can only be interrupted while doing so.
+     */
+    private class Worker {
+        private Thread thread;
+
+        private Worker(Thread thread) {
+            this.thread = thread;
+        }
+
+        private synchronized void interrupt() {
+            if (thread != null) thread.interrupt();
+        }
+
+        private void detach() {
+            synchronized (this) {
+                thread = null;
+            }
+            // no interrupt can happen after this point, clear the ones caused by cancel()
+            if (cancelled) Thread.interrupted();
+        }
+    }
+}
@@ -1,14 +1,68 @@
 package com.github.momiji.streams.parallel.internal;
 
+import com.github.momiji.streams.parallel.FairScheduler;
+import com.github.momiji.streams.parallel.ParallelTrace;
+import com.github.momiji.streams.parallel.WaitStrategy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ParallelConfig {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "parallel-stream-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private int nThreads;
     private int queueSize;
+    private ExecutorService executor;
+    private boolean virtualThreads;
+    private WaitStrategy waitStrategy;
+    private int minThreads;
+    private int maxThreads;
+    private String jmxName;
+    private ParallelTrace trace;
+    private FairScheduler.Tenant tenant;
+    private double hedgePercentile;
+    private double hedgeBudget;
 
     private ParallelConfig() {
     }
 
     public static ParallelConfig newConfig() {
-        return new ParallelConfig();
+        return new ParallelConfig()
+                .setNThreads(Runtime.getRuntime().availableProcessors())
+                .setQueueSize(100);
+    }
+
+    /**
+     * Returns the process-wide executor used by stages when no executor is configured.
+     * <br><br>
+     * Threads are created on demand, reused between stages and pipelines, and stopped after being idle
+     * for a while. Each stage still runs at most nThreads tasks at the same time.
+     */
+    public static ExecutorService defaultExecutor() {
+        return DEFAULT_EXECUTOR;
+    }
+
+    public ParallelConfig copy() {
+        ParallelConfig config = new ParallelConfig();
+        config.nThreads = nThreads;
+        config.queueSize = queueSize;
+        config.executor = executor;
+        config.virtualThreads = virtualThreads;
+        config.waitStrategy = waitStrategy;
+        config.minThreads = minThreads;
+        config.maxThreads = maxThreads;
+        config.jmxName = jmxName;
+        config.trace = trace;
+        config.tenant = tenant;
+        config.hedgePercentile = hedgePercentile;
+        config.hedgeBudget = hedgeBudget;
+        return config;
     }
 
     public int getQueueSize() {
@@ -28,4 +82,135 @@ public class ParallelConfig {
         this.nThreads = nThreads;
         return this;
     }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor running the tasks of the stages, which is never shut down by the stages.
+     * When not set, the {@link #defaultExecutor()} is used.
+     */
+    public ParallelConfig setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Runs each task on a new virtual thread, when running on Java 21 or later and no executor is set.
+     * <br><br>
+     * nThreads is then the maximum number of tasks running at the same time instead of a number of threads,
+     * so it can be much higher than the number of processors for blocking tasks. On older JVMs, tasks run
+     * on the {@link #defaultExecutor()}.
+     */
+    public ParallelConfig setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sends results to the consumer through a preallocated lock-free ring buffer, where the consumer waits
+     * for results using the given strategy. When not set, results go through a blocking queue, where
+     * the consumer is parked until a result is available.
+     */
+    public ParallelConfig setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return maxThreads > 0;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Lets each stage adjust its concurrency limit between minThreads and maxThreads at runtime, starting
+     * from nThreads: it is raised while the throughput scales, and lowered when the task latency inflates.
+     * Setting maxThreads to 0 disables it.
+     */
+    public ParallelConfig setAdaptive(int minThreads, int maxThreads) {
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    public String getJmxName() {
+        return jmxName;
+    }
+
+    /**
+     * Registers the {@link com.github.momiji.streams.parallel.StageStats} of each stage as a JMX MXBean named
+     * {@code com.github.momiji.streams.parallel:type=Stage,name=<jmxName>,id=<n>}, from its start until it is
+     * done or cancelled. Setting null disables it.
+     */
+    public ParallelConfig setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+        return this;
+    }
+
+    public ParallelTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Records the lifecycle of the items of each stage in the given trace, where stages are named after
+     * their jmxName if set. Setting null disables it.
+     */
+    public ParallelConfig setTrace(ParallelTrace trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    public FairScheduler.Tenant getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Runs the tasks of the stages on the threads of a {@link FairScheduler}, shared with the other tenants
+     * by weighted fair queuing, instead of on the executor. Workers give their thread back after each time
+     * slice of the scheduler, so that the scheduler can run the tasks of other tenants in between.
+     * Setting null disables it.
+     */
+    public ParallelConfig setTenant(FairScheduler.Tenant tenant) {
+        this.tenant = tenant;
+        return this;
+    }
+
+    public boolean isHedged() {
+        return hedgePercentile > 0;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * Starts a second attempt of the tasks of idempotent mappers still running after the given percentile of
+     * the recent task latencies, the first attempt to complete giving the result, as long as the number of
+     * second attempts stays below the given fraction of the tasks. Setting percentile to 0 disables it.
+     */
+    public ParallelConfig setHedging(double percentile, double budget) {
+        this.hedgePercentile = percentile;
+        this.hedgeBudget = budget;
+        return this;
+    }
 }
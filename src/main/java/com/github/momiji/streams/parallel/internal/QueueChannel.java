@@ -0,0 +1,29 @@
+package com.github.momiji.streams.parallel.internal;
+
+/**
+ * The channel moving items from the workers of a stage to its consumer.
+ *
+ * @param <T> the type of the values
+ */
+public interface QueueChannel<T> {
+
+    /**
+     * Adds an item, waiting if the channel is full.
+     */
+    void add(QueueItem<T> item);
+
+    /**
+     * Takes the next item, waiting until one is available.
+     */
+    QueueItem<T> take() throws InterruptedException;
+
+    /**
+     * Takes the next item, or returns null if none is available.
+     */
+    QueueItem<T> poll();
+
+    /**
+     * Returns the number of items in the channel, which is only a snapshot while items are moving.
+     */
+    int size();
+}
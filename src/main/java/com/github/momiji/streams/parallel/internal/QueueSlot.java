@@ -0,0 +1,101 @@
+package com.github.momiji.streams.parallel.internal;
+
+/**
+ * A batch of items carried through a stage, from the producer to the consumer, and recycled once consumed.
+ * <br><br>
+ * The producer takes a slot from the {@link SlotPool} of the stage for each batch of items it reads, a worker
+ * replaces the items by their results in place, and the consumer gives the slot back to the pool once it has
+ * read the results, so a stage in a steady state does not allocate per item. The slot is also the task run by
+ * the worker, so submitting it does not allocate either.
+ *
+ * @param <T> the type of the results
+ */
+public class QueueSlot<T> implements QueueItem<T>, Runnable {
+    private final SlotPool<T> pool;
+    private final Object[] values;
+    private long seq;
+    private int size;
+    // next free slot, only used while in the pool
+    QueueSlot<T> next;
+
+    QueueSlot(SlotPool<T> pool, int capacity) {
+        this.pool = pool;
+        this.values = new Object[capacity];
+    }
+
+    void reset(long seq) {
+        this.seq = seq;
+        this.size = 0;
+    }
+
+    /**
+     * Clears the values, so that they can be garbage collected while the slot is in the pool.
+     *
+     * @return the number of values
+     */
+    int clear() {
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            values[i] = null;
+        }
+        size = 0;
+        return n;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == values.length;
+    }
+
+    /**
+     * Adds an item read by the producer.
+     */
+    public void add(Object item) {
+        values[size++] = item;
+    }
+
+    /**
+     * Returns the item or result at the given index, which is an item until the worker replaces it.
+     */
+    public Object get(int index) {
+        return values[index];
+    }
+
+    public void set(int index, Object value) {
+        values[index] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getValue(int index) {
+        return (T) values[index];
+    }
+
+    /**
+     * Returns the output of the stage, where the slot is published once its items are mapped.
+     */
+    public StageOutput<T> getOutput() {
+        return pool.getOutput();
+    }
+
+    /**
+     * Runs the task of the stage on this slot.
+     */
+    @Override
+    public void run() {
+        pool.getTask().accept(this);
+    }
+
+    /**
+     * Gives the slot back to its pool, releasing the queue permits of its items.
+     */
+    public void recycle() {
+        pool.recycle(this);
+    }
+}
@@ -3,75 +3,214 @@ package com.github.momiji.streams.parallel.internal;
 import com.github.momiji.streams.parallel.ParallelException;
 
 import java.util.Spliterator;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+/**
+ * Reads the results of a stage from its output channel.
+ * <br><br>
+ * When the stage is not sorted, the spliterator can be split, so that a parallel downstream pipeline has several
+ * consumers draining the same channel. Splits share the number of results consumed and the total size, and each
+ * split ends once all results have been consumed: the split consuming the last result, or learning the size last,
+ * adds an end marker to the channel, which is put back by each split taking it to wake up the next one. Failures
+ * are also put back, so that all splits see them, and all splits report the first one.
+ * <br><br>
+ * When the size of the input is known, it is reported as the estimated size of the results, but the spliterator
+ * is never SIZED: {@link java.util.stream.Stream#count()} would then return it without traversing the results,
+ * leaving the stage running until it is abandoned.
+ */
 public class QueueSpliterator<T> implements Spliterator<T> {
-    private final BlockingQueue<QueueItem<T>> queue;
-    private final AtomicBoolean aborted;
-    private long count = 0;
-    private long size = -1;
-
-    public QueueSpliterator(BlockingQueue<QueueItem<T>> queue, AtomicBoolean aborted) {
-        this.queue = queue;
-        this.aborted = aborted;
+    private final Shared<T> shared;
+    private QueueSlot<T> slot;
+    private int slotIndex;
+
+    /**
+     * @param cancel    called when the consumer fails, to stop the stage
+     * @param metrics   the statistics of the stage, updated with the items consumed and the time spent waiting
+     * @param trace     the trace of the stage, where items are recorded when consumed
+     * @param sorted    true if results are in input order, in which case the spliterator is ordered and cannot be split
+     * @param inputSize the exact size of the input, or -1 if unknown
+     */
+    public QueueSpliterator(QueueChannel<T> queue, AtomicBoolean aborted, Runnable cancel, StageMetrics metrics,
+                            TraceRecorder.Stage trace, boolean sorted, long inputSize) {
+        this.shared = new Shared<>(queue, aborted, cancel, metrics, trace, sorted, inputSize);
+    }
+
+    private QueueSpliterator(Shared<T> shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Returns the state shared by all splits, which is reachable as long as one of them is in use.
+     */
+    public Object getShared() {
+        return shared;
     }
 
     @Override
     public boolean tryAdvance(Consumer<? super T> action) {
+        Shared<T> s = shared;
         try {
             for (; ; ) {
-                if (size != -1 && count == size) {
+                if (slot != null) {
+                    QueueSlot<T> qSlot = slot;
+                    s.consumed();
+                    action.accept(qSlot.getValue(slotIndex++));
+                    if (slotIndex == qSlot.getSize()) {
+                        // the last result has been consumed, the slot can be reused by the producer
+                        slot = null;
+                        qSlot.recycle();
+                    }
+                    return true;
+                }
+                if (s.isDone()) {
+                    s.metrics.unregister();
                     return false;
                 }
-                QueueItem<T> item = queue.take();
-                // if future, use result
-                if (item instanceof QueueFuture) {
-                    QueueFuture<T> qFuture = (QueueFuture<T>) item;
-                    item = qFuture.getFuture().get();
+                QueueItem<T> item = s.queue.poll();
+                if (item == null) {
+                    long start = System.nanoTime();
+                    item = s.queue.take();
+                    s.metrics.addConsumerWait(System.nanoTime() - start);
                 }
+                s.trace.record(item, TraceRecorder.Phase.CONSUME);
                 // process item
-                if (item instanceof QueueData) {
-                    QueueData<T> qData = (QueueData<T>) item;
-                    count++;
-                    action.accept(qData.getValue());
-                    qData.getSemaphore().release();
-                    return true;
+                if (item instanceof QueueSlot) {
+                    slot = (QueueSlot<T>) item;
+                    slotIndex = 0;
+                    continue;
                 }
                 if (item instanceof QueueSize) {
-                    QueueSize<T> qSize = (QueueSize<T>) item;
-                    size = qSize.getSize();
+                    s.sized(((QueueSize<T>) item).getSize(), item);
                 }
                 if (item instanceof QueueFailure) {
                     QueueFailure<T> qException = (QueueFailure<T>) item;
+                    // let the other splits fail too
+                    s.queue.add(item);
                     throw qException.getException();
                 }
             }
         } catch (RuntimeException ex) {
-            aborted.set(true);
-            throw ex;
+            throw s.fail(ex);
         } catch (Exception ex) {
-            aborted.set(true);
             if (ex instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
             }
-            throw new ParallelException(ex);
+            throw s.fail(new ParallelException(ex));
         }
     }
 
+    /**
+     * Splits an unsorted spliterator, up to the parallelism of the fork-join pool running the downstream pipeline.
+     */
     @Override
     public Spliterator<T> trySplit() {
-        return null;
+        Shared<T> s = shared;
+        if (s.sorted || s.isDone()) {
+            return null;
+        }
+        int parallelism = ForkJoinTask.inForkJoinPool()
+                ? ForkJoinTask.getPool().getParallelism()
+                : ForkJoinPool.getCommonPoolParallelism();
+        for (; ; ) {
+            int splits = s.splits.get();
+            if (splits >= parallelism) {
+                return null;
+            }
+            if (s.splits.compareAndSet(splits, splits + 1)) {
+                break;
+            }
+        }
+        if (s.isDone()) {
+            // the end may have been seen before this split was counted, so it would never be woken up
+            return null;
+        }
+        return new QueueSpliterator<>(s);
     }
 
     @Override
     public long estimateSize() {
-        return Long.MAX_VALUE;
+        long size = shared.size == -1 ? shared.inputSize : shared.size;
+        return size == -1 ? Long.MAX_VALUE : size - shared.count.get();
     }
 
     @Override
     public int characteristics() {
-        return ORDERED | NONNULL | CONCURRENT;
+        int characteristics = NONNULL | CONCURRENT;
+        if (shared.sorted) characteristics |= ORDERED;
+        return characteristics;
+    }
+
+    /**
+     * The state shared by all splits of a spliterator.
+     */
+    private static class Shared<T> {
+        private final QueueChannel<T> queue;
+        private final AtomicBoolean aborted;
+        private final Runnable cancel;
+        private final StageMetrics metrics;
+        private final TraceRecorder.Stage trace;
+        private final boolean sorted;
+        private final long inputSize;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicInteger splits = new AtomicInteger(1);
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private volatile long size = -1;
+
+        private Shared(QueueChannel<T> queue, AtomicBoolean aborted, Runnable cancel, StageMetrics metrics,
+                       TraceRecorder.Stage trace, boolean sorted, long inputSize) {
+            this.queue = queue;
+            this.aborted = aborted;
+            this.cancel = cancel;
+            this.metrics = metrics;
+            this.trace = trace;
+            this.sorted = sorted;
+            this.inputSize = inputSize;
+        }
+
+        /**
+         * Stops the stage, and returns the first failure, so that all splits report it rather than the
+         * cancellation of the stage.
+         */
+        private RuntimeException fail(RuntimeException ex) {
+            failure.compareAndSet(null, ex);
+            aborted.set(true);
+            cancel.run();
+            return failure.get();
+        }
+
+        private boolean isDone() {
+            long s = size;
+            return s != -1 && count.get() == s;
+        }
+
+        private void consumed() {
+            metrics.addItemOut();
+            if (count.incrementAndGet() == size) {
+                end();
+            }
+        }
+
+        /**
+         * Handles a size item, sent by the producer once all items have been read, or put back by another split.
+         */
+        private void sized(long size, QueueItem<T> item) {
+            this.size = size;
+            if (splits.get() > 1 && count.get() == size) {
+                // wake up the next split waiting for results
+                queue.add(item);
+            }
+        }
+
+        private void end() {
+            if (splits.get() > 1) {
+                queue.add(new QueueSize<>(size));
+            }
+        }
     }
 }
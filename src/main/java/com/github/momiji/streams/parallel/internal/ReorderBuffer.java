@@ -0,0 +1,105 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Restores the input order of items processed in parallel.
+ * <br><br>
+ * Each item gets a sequence number when it is read. Workers put their result in the slot indexed by this
+ * sequence number, and the contiguous run of results starting at the next expected sequence number is moved
+ * to the output channel as soon as it is available.
+ * <br><br>
+ * The window bounds the number of sequence numbers between the next expected one and the last one read:
+ * the producer must acquire a permit from {@link #getSemaphore()} before reading an item, so it stalls
+ * when the window is full.
+ * <br><br>
+ * Items are moved to the output channel outside of the lock, as the channel may be full: a single worker
+ * moves them at a time, in order, and workers putting items meanwhile leave them to it instead of waiting.
+ *
+ * @param <T> the type of the items
+ */
+public class ReorderBuffer<T> {
+    private final QueueItem<T>[] slots;
+    private final Semaphore semaphore;
+    private final QueueChannel<T> queue;
+    // guarded by this
+    private long next = 0;
+    private boolean moving;
+
+    public ReorderBuffer(int window, QueueChannel<T> queue) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be greater than 0");
+        }
+        @SuppressWarnings("unchecked")
+        QueueItem<T>[] slots = (QueueItem<T>[]) new QueueItem<?>[window];
+        this.slots = slots;
+        this.semaphore = new Semaphore(window);
+        this.queue = queue;
+    }
+
+    public Semaphore getSemaphore() {
+        return semaphore;
+    }
+
+    /**
+     * Puts the item with the given sequence number, and moves all contiguous items to the output channel.
+     *
+     * @param seq  the sequence number of the item, starting at 0
+     * @param item the item
+     */
+    public void put(long seq, QueueItem<T> item) {
+        synchronized (this) {
+            slots[index(seq)] = item;
+            if (moving) {
+                // the worker moving items will also move this one if it is next
+                return;
+            }
+            moving = true;
+        }
+        for (; ; ) {
+            QueueItem<T> ready;
+            int index;
+            synchronized (this) {
+                index = index(next);
+                ready = slots[index];
+                if (ready == null) {
+                    moving = false;
+                    return;
+                }
+                // taken out, so that drain() does not also release it once it is in the channel
+                slots[index] = null;
+            }
+            try {
+                queue.add(ready);
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    slots[index] = ready;
+                    moving = false;
+                }
+                throw ex;
+            }
+            synchronized (this) {
+                next++;
+            }
+            // the slot is only reused once its permit is released
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Removes all items waiting for a previous one.
+     */
+    public synchronized void drain(Consumer<QueueItem<T>> action) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                action.accept(slots[i]);
+                slots[i] = null;
+            }
+        }
+    }
+
+    private int index(long seq) {
+        return (int) (seq % slots.length);
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue backed by a preallocated ring buffer, which does not allocate when elements are added.
+ * <br><br>
+ * This is Dmitry Vyukov's bounded queue: each slot has a sequence number telling whether it can be written
+ * or read for a given position, so writers only contend on the tail position and readers on the head position,
+ * without any lock nor allocation.
+ * <br><br>
+ * {@link #offer(Object)} returns false when the queue is full. Iterating is not supported.
+ *
+ * @param <E> the type of the elements
+ */
+public class RingBuffer<E> extends AbstractQueue<E> {
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity the minimum capacity, rounded up to a power of 2
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        for (; ; ) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, item);
+                    // a full barrier, so that a writer then checking for idle readers cannot miss one
+                    // which found the ring empty
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the slot has not been read since the previous lap, the ring is full
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        long pos = head.get();
+        for (; ; ) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E item = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.lazySet(index, pos + mask + 1);
+                    return item;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                // the slot has not been written yet, the ring is empty
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        long pos = head.get();
+        int index = (int) (pos & mask);
+        return sequences.get(index) == pos + 1 ? items.get(index) : null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) (pos & mask)) != pos + 1;
+    }
+
+    @Override
+    public int size() {
+        // claimed slots may not be written yet, and head may move between the two reads
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        throw new UnsupportedOperationException();
+    }
+}
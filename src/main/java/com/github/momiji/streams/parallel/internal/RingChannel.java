@@ -0,0 +1,57 @@
+package com.github.momiji.streams.parallel.internal;
+
+import com.github.momiji.streams.parallel.ParallelException;
+import com.github.momiji.streams.parallel.WaitStrategy;
+
+/**
+ * Bounded lock-free channel backed by a preallocated {@link RingBuffer}, where waiting threads use a {@link WaitStrategy}.
+ * <br><br>
+ * The capacity must be large enough for all items that can be in the channel at the same time,
+ * which is bounded by the queue permits of the stage, otherwise writers wait for free slots.
+ */
+public class RingChannel<T> implements QueueChannel<T> {
+    private final RingBuffer<QueueItem<T>> ring;
+    private final WaitStrategy waitStrategy;
+
+    public RingChannel(int capacity, WaitStrategy waitStrategy) {
+        this.ring = new RingBuffer<>(capacity);
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public void add(QueueItem<T> item) {
+        int attempt = 0;
+        while (!offer(item)) {
+            try {
+                waitStrategy.idle(attempt++);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ParallelException(ex);
+            }
+        }
+    }
+
+    @Override
+    public QueueItem<T> take() throws InterruptedException {
+        int attempt = 0;
+        QueueItem<T> item;
+        while ((item = poll()) == null) {
+            waitStrategy.idle(attempt++);
+        }
+        return item;
+    }
+
+    public boolean offer(QueueItem<T> item) {
+        return ring.offer(item);
+    }
+
+    @Override
+    public QueueItem<T> poll() {
+        return ring.poll();
+    }
+
+    @Override
+    public int size() {
+        return ring.size();
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The free {@link QueueSlot}s of a stage.
+ * <br><br>
+ * Slots are created on demand, and the number of slots in use is bounded by the queue permits of the stage,
+ * each slot holding one permit per item, so the pool stops growing once the stage reaches its steady state.
+ * <br><br>
+ * Free slots are kept in a lock-free stack linked through the slots themselves. Only the producer takes
+ * slots, which prevents the ABA problem: the slot at the top of the stack can only be removed by the
+ * producer itself, while consumers push slots back concurrently.
+ *
+ * @param <T> the type of the results
+ */
+public class SlotPool<T> {
+    private final AtomicReference<QueueSlot<T>> free = new AtomicReference<>();
+    private final Semaphore semaphore;
+    private final int batchSize;
+    private final StageOutput<T> output;
+    private final Consumer<QueueSlot<T>> task;
+
+    /**
+     * @param semaphore the queue permits, released when slots are recycled
+     * @param batchSize the maximum number of items per slot
+     * @param output    the output of the stage, or null if results are not queued
+     * @param task      the task run by workers on slots, or null if slots are not run
+     */
+    public SlotPool(Semaphore semaphore, int batchSize, StageOutput<T> output, Consumer<QueueSlot<T>> task) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        this.semaphore = semaphore;
+        this.batchSize = batchSize;
+        this.output = output;
+        this.task = task;
+    }
+
+    /**
+     * Returns an empty slot for the batch with the given sequence number. Must only be called by the producer.
+     */
+    public QueueSlot<T> take(long seq) {
+        QueueSlot<T> slot;
+        for (; ; ) {
+            slot = free.get();
+            if (slot == null) {
+                slot = new QueueSlot<>(this, batchSize);
+                break;
+            }
+            if (free.compareAndSet(slot, slot.next)) {
+                slot.next = null;
+                break;
+            }
+        }
+        slot.reset(seq);
+        return slot;
+    }
+
+    void recycle(QueueSlot<T> slot) {
+        int size = slot.clear();
+        for (; ; ) {
+            QueueSlot<T> head = free.get();
+            slot.next = head;
+            if (free.compareAndSet(head, slot)) {
+                break;
+            }
+        }
+        // the slot is free before its permits, so the producer always finds a slot once it has permits
+        semaphore.release(size);
+    }
+
+    StageOutput<T> getOutput() {
+        return output;
+    }
+
+    Consumer<QueueSlot<T>> getTask() {
+        return task;
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.momiji.streams.parallel.internal;
+
+import com.github.momiji.streams.parallel.ParallelException;
+import com.github.momiji.streams.parallel.StageStats;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the {@link StageStats} of a stage.
+ * <br><br>
+ * Counters are {@link LongAdder}s, so workers do not contend when recording, and gauges are read from
+ * the channel and the executor only when asked.
+ */
+public class StageMetrics implements StageStats {
+    private static final String JMX_DOMAIN = "com.github.momiji.streams.parallel";
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final QueueChannel<?> queue;
+    private final LimitedExecutor executor;
+    private final LongAdder itemsIn = new LongAdder();
+    private final LongAdder itemsOut = new LongAdder();
+    private final LongAdder producerWait = new LongAdder();
+    private final LongAdder consumerWait = new LongAdder();
+    private final LongAdder hedgedTasks = new LongAdder();
+    private final LatencyHistogram taskLatency = new LatencyHistogram();
+    private final AtomicReference<ObjectName> objectName = new AtomicReference<>();
+
+    /**
+     * @param queue the output channel of the stage, or null if results are not queued
+     */
+    public StageMetrics(QueueChannel<?> queue, LimitedExecutor executor) {
+        this.queue = queue;
+        this.executor = executor;
+    }
+
+    public void addItemsIn(int count) {
+        itemsIn.add(count);
+    }
+
+    public void addItemOut() {
+        itemsOut.increment();
+    }
+
+    public void addProducerWait(long nanos) {
+        producerWait.add(nanos);
+    }
+
+    public void addConsumerWait(long nanos) {
+        consumerWait.add(nanos);
+    }
+
+    public void addHedgedTask() {
+        hedgedTasks.increment();
+    }
+
+    public void recordTask(long nanos, int items) {
+        taskLatency.record(nanos / items, items);
+    }
+
+    /**
+     * Registers the stage in the platform MBean server, with a unique id so that stages with the same name
+     * do not collide.
+     */
+    public void register(String name) {
+        try {
+            ObjectName on = new ObjectName(JMX_DOMAIN + ":type=Stage,name=" + ObjectName.quote(name)
+                    + ",id=" + IDS.incrementAndGet());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(this, StageStats.class, true), on);
+            objectName.set(on);
+        } catch (JMException ex) {
+            throw new ParallelException(ex);
+        }
+    }
+
+    /**
+     * Unregisters the stage if it has been registered, which is done once the stage is done or cancelled.
+     */
+    public void unregister() {
+        ObjectName on = objectName.getAndSet(null);
+        if (on == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException ex) {
+            // already unregistered from outside
+        }
+    }
+
+    @Override
+    public long getItemsIn() {
+        return itemsIn.sum();
+    }
+
+    @Override
+    public long getItemsOut() {
+        return itemsOut.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public int getBacklog() {
+        return executor.getQueuedTasks();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return executor.getWorkers();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return executor.getMaxConcurrency();
+    }
+
+    @Override
+    public long getProducerWaitNanos() {
+        return producerWait.sum();
+    }
+
+    @Override
+    public long getConsumerWaitNanos() {
+        return consumerWait.sum();
+    }
+
+    @Override
+    public long getTaskCount() {
+        return taskLatency.getCount();
+    }
+
+    @Override
+    public double getTaskLatencyMeanNanos() {
+        return taskLatency.getMean();
+    }
+
+    @Override
+    public long getTaskLatencyP50Nanos() {
+        return taskLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getTaskLatencyP90Nanos() {
+        return taskLatency.getPercentile(90);
+    }
+
+    @Override
+    public long getTaskLatencyP99Nanos() {
+        return taskLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getTaskLatencyMaxNanos() {
+        return taskLatency.getMax();
+    }
+
+    @Override
+    public long getHedgedTasks() {
+        return hedgedTasks.sum();
+    }
+
+    @Override
+    public long getTaskLatencyNanos(double percentile) {
+        return taskLatency.getPercentile(percentile);
+    }
+}
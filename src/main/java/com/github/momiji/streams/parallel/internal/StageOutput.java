@@ -0,0 +1,55 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.function.Consumer;
+
+/**
+ * The output of a stage: the channel read by the consumer, with the reorder buffer in front of it if sorted.
+ * <br><br>
+ * Workers only reference the output of their stage, and not the resulting stream, so that an abandoned
+ * stream can be garbage collected while its stage is still running.
+ *
+ * @param <T> the type of the results
+ */
+public class StageOutput<T> {
+    private final QueueChannel<T> queue;
+    private final ReorderBuffer<T> reorder;
+
+    public StageOutput(QueueChannel<T> queue, ReorderBuffer<T> reorder) {
+        this.queue = queue;
+        this.reorder = reorder;
+    }
+
+    public QueueChannel<T> getQueue() {
+        return queue;
+    }
+
+    public ReorderBuffer<T> getReorder() {
+        return reorder;
+    }
+
+    /**
+     * Publishes a result, in input order if sorted.
+     */
+    public void publish(long seq, QueueItem<T> item) {
+        if (reorder != null) reorder.put(seq, item);
+        else queue.add(item);
+    }
+
+    /**
+     * Publishes a failure, bypassing the reorder buffer.
+     */
+    public void fail(Exception ex) {
+        queue.add(new QueueFailure<>(ex));
+    }
+
+    /**
+     * Removes all pending items, from both the reorder buffer and the channel.
+     */
+    public void drain(Consumer<QueueItem<T>> action) {
+        if (reorder != null) reorder.drain(action);
+        QueueItem<T> item;
+        while ((item = queue.poll()) != null) {
+            action.accept(item);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongFunction;
+
+/**
+ * A hash map from keys to primitive longs, updated concurrently by workers.
+ * <br><br>
+ * Keys are spread over stripes, each stripe being an open addressing table guarded by its own lock, so
+ * workers only contend when they update keys of the same stripe, and values are never boxed. A value is
+ * updated by combining it with a new value, starting from an identity, so counters and sums of longs, or
+ * of doubles stored as their raw bits, can be kept without allocating.
+ * <br><br>
+ * The null key is supported.
+ */
+public class StripedLongMap<K> {
+    private static final Object NULL_KEY = new Object();
+    private static final int STRIPES_PER_THREAD = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final long identity;
+    private final LongBinaryOperator op;
+
+    /**
+     * @param concurrency the expected number of threads updating the map at the same time
+     * @param identity    the initial value of a key
+     * @param op          the function combining the current value of a key with a new value
+     */
+    public StripedLongMap(int concurrency, long identity, LongBinaryOperator op) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be greater than 0");
+        }
+        int count = Integer.highestOneBit(concurrency * STRIPES_PER_THREAD - 1) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.identity = identity;
+        this.op = op;
+    }
+
+    /**
+     * Combines the value of a key with a new value.
+     */
+    public void accumulate(K key, long value) {
+        Object k = key == null ? NULL_KEY : key;
+        int h = hash(k);
+        // high bits select the stripe, low bits the slot in the stripe
+        stripes[h >>> stripeShift].accumulate(k, h, value, identity, op);
+    }
+
+    /**
+     * Returns the values, converted by the finisher, which must only be called once all updates are done.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Map<K, R> toMap(LongFunction<? extends R> finisher) {
+        Map<K, R> map = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    Object k = stripe.keys[i];
+                    if (k != null) {
+                        map.put(k == NULL_KEY ? null : (K) k, finisher.apply(stripe.values[i]));
+                    }
+                }
+            }
+        }
+        return map;
+    }
+
+    private static class Stripe {
+        private Object[] keys = new Object[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private int size;
+
+        private synchronized void accumulate(Object key, int hash, long value, long identity, LongBinaryOperator op) {
+            int slot = find(keys, key, hash);
+            if (keys[slot] == null) {
+                if (size + 1 > keys.length / 2) {
+                    resize();
+                    slot = find(keys, key, hash);
+                }
+                keys[slot] = key;
+                values[slot] = identity;
+                size++;
+            }
+            values[slot] = op.applyAsLong(values[slot], value);
+        }
+
+        private void resize() {
+            Object[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new Object[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                Object k = oldKeys[i];
+                if (k != null) {
+                    int slot = find(keys, k, hash(k));
+                    keys[slot] = k;
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private static int hash(Object key) {
+        return key.hashCode() * 0x9E3779B9;
+    }
+
+    /**
+     * Returns the slot of the key, or the free slot where it must be added, using linear probing.
+     */
+    private static int find(Object[] keys, Object key, int hash) {
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        for (; ; ) {
+            Object k = keys[slot];
+            if (k == null || k.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.momiji.streams.parallel.internal;
+
+/**
+ * Emits trace events to JDK Flight Recorder, which is only available from Java 11: this version does nothing,
+ * and is replaced by the Java 11 version of the multi-release jar.
+ */
+public class TraceEvents {
+    private TraceEvents() {
+    }
+
+    public static boolean isSupported() {
+        return false;
+    }
+
+    public static void emit(String stage, long seq, String phase) {
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The ring of events behind a {@link com.github.momiji.streams.parallel.ParallelTrace}, and the stages recording
+ * into it.
+ * <br><br>
+ * Writers only contend on an atomic cursor, so the oldest events are overwritten once the capacity is reached.
+ * The name of the thread is kept with each event, so that only the threads of the events still in the ring are
+ * named in the trace.
+ */
+public class TraceRecorder {
+    private static final Stage DISABLED = new Stage(null, -1, null);
+    // time, seq, stage and phase, thread id
+    private static final int FIELDS = 4;
+
+    public enum Phase {
+        SUBMIT, START, END, ENQUEUE, CONSUME
+    }
+
+    private final AtomicLongArray data;
+    private final AtomicLongArray stamps;
+    private final AtomicReferenceArray<String> names;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    private final long origin = System.nanoTime();
+    private final List<String> stages = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param capacity the number of events kept, rounded up to a power of 2
+     */
+    public TraceRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.data = new AtomicLongArray(size * FIELDS);
+        this.stamps = new AtomicLongArray(size);
+        this.names = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns a stage recording nothing, used when tracing is disabled.
+     */
+    public static Stage disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Adds a traced stage.
+     *
+     * @param name the name of the stage in the trace, or null to name it after its index
+     */
+    public synchronized Stage addStage(String name) {
+        int id = stages.size();
+        if (name == null) {
+            name = "stage-" + id;
+        }
+        stages.add(name);
+        return new Stage(this, id, name);
+    }
+
+    private void record(int stage, long seq, Phase phase) {
+        long time = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        long tid = thread.getId();
+        long index = cursor.getAndIncrement();
+        int slot = (int) (index & mask);
+        int base = slot * FIELDS;
+        // readers skip the slot while it is written
+        stamps.set(slot, 0);
+        data.set(base, time);
+        data.set(base + 1, seq);
+        data.set(base + 2, ((long) stage << 8) | phase.ordinal());
+        data.set(base + 3, tid);
+        names.set(slot, thread.getName());
+        stamps.set(slot, index + 1);
+    }
+
+    /**
+     * Writes the events still in the ring as a Chrome trace in JSON format.
+     *
+     * @see com.github.momiji.streams.parallel.ParallelTrace#writeChromeTrace(Appendable)
+     */
+    public void writeChromeTrace(Appendable out) throws IOException {
+        Map<String, long[]> items = new LinkedHashMap<>();
+        Map<Long, String> threads = new LinkedHashMap<>();
+        for (long[] event : events(threads)) {
+            int stage = (int) (event[2] >>> 8);
+            int phase = (int) (event[2] & 0xff);
+            long[] item = items.computeIfAbsent(stage + ":" + event[1], k -> new long[2 + Phase.values().length * 2]);
+            item[0] = stage;
+            item[1] = event[1];
+            item[2 + phase * 2] = event[0];
+            item[3 + phase * 2] = event[3];
+        }
+        out.append("{\"traceEvents\":[");
+        boolean first = true;
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            first = separator(out, first);
+            out.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(String.valueOf(thread.getKey()))
+                    .append(",\"args\":{\"name\":").append(quote(thread.getValue())).append("}}");
+        }
+        for (Map.Entry<String, long[]> entry : items.entrySet()) {
+            long[] item = entry.getValue();
+            String stage = quote(stages.get((int) item[0]));
+            String id = quote(entry.getKey());
+            long seq = item[1];
+            if (has(item, Phase.START) && has(item, Phase.END)) {
+                first = separator(out, first);
+                out.append("{\"name\":\"map\",\"cat\":").append(stage).append(",\"ph\":\"X\",\"pid\":1")
+                        .append(",\"tid\":").append(String.valueOf(tid(item, Phase.END)))
+                        .append(",\"ts\":").append(timestamp(time(item, Phase.START)))
+                        .append(",\"dur\":").append(micros(time(item, Phase.END) - time(item, Phase.START)))
+                        .append(",\"args\":{\"seq\":").append(String.valueOf(seq)).append("}}");
+            }
+            first = span(out, first, stage, id, "item " + seq, item, Phase.SUBMIT, Phase.CONSUME);
+            first = span(out, first, stage, id, "wait", item, Phase.SUBMIT, Phase.START);
+            first = span(out, first, stage, id, "map", item, Phase.START, Phase.END);
+            first = span(out, first, stage, id, "reorder", item, Phase.END, Phase.ENQUEUE);
+            first = span(out, first, stage, id, "output", item, Phase.ENQUEUE, Phase.CONSUME);
+        }
+        out.append("]}");
+    }
+
+    /**
+     * Returns the complete events of the ring, ordered by time, and adds the names of their threads to the
+     * given map.
+     */
+    private List<long[]> events(Map<Long, String> threads) {
+        List<long[]> events = new ArrayList<>();
+        for (int slot = 0; slot <= mask; slot++) {
+            long stamp = stamps.get(slot);
+            if (stamp == 0) {
+                continue;
+            }
+            int base = slot * FIELDS;
+            long[] event = new long[FIELDS];
+            for (int i = 0; i < FIELDS; i++) {
+                event[i] = data.get(base + i);
+            }
+            String name = names.get(slot);
+            if (stamps.get(slot) == stamp) {
+                events.add(event);
+                threads.putIfAbsent(event[3], name);
+            }
+        }
+        events.sort(Comparator.comparingLong(e -> e[0]));
+        return events;
+    }
+
+    private boolean span(Appendable out, boolean first, String stage, String id, String name, long[] item,
+                         Phase begin, Phase end) throws IOException {
+        if (!has(item, begin) || !has(item, end)) {
+            return first;
+        }
+        first = separator(out, first);
+        asyncEvent(out, stage, id, quote(name), "b", tid(item, begin), time(item, begin));
+        separator(out, false);
+        asyncEvent(out, stage, id, quote(name), "e", tid(item, end), time(item, end));
+        return false;
+    }
+
+    private void asyncEvent(Appendable out, String stage, String id, String name, String ph, long tid, long time)
+            throws IOException {
+        out.append("{\"name\":").append(name).append(",\"cat\":").append(stage)
+                .append(",\"ph\":\"").append(ph).append("\",\"id\":").append(id)
+                .append(",\"pid\":1,\"tid\":").append(String.valueOf(tid))
+                .append(",\"ts\":").append(timestamp(time)).append("}");
+    }
+
+    private static boolean separator(Appendable out, boolean first) throws IOException {
+        if (!first) out.append(',');
+        return false;
+    }
+
+    private static boolean has(long[] item, Phase phase) {
+        // thread ids start at 1
+        return item[3 + phase.ordinal() * 2] != 0;
+    }
+
+    private static long time(long[] item, Phase phase) {
+        return item[2 + phase.ordinal() * 2];
+    }
+
+    private static long tid(long[] item, Phase phase) {
+        return item[3 + phase.ordinal() * 2];
+    }
+
+    private String timestamp(long nanos) {
+        return micros(nanos - origin);
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * A traced stage, recording the events of its items.
+     */
+    public static class Stage {
+        private final TraceRecorder trace;
+        private final int id;
+        private final String name;
+
+        private Stage(TraceRecorder trace, int id, String name) {
+            this.trace = trace;
+            this.id = id;
+            this.name = name;
+        }
+
+        public boolean isEnabled() {
+            return trace != null;
+        }
+
+        /**
+         * Records an event of the item with the given sequence number.
+         */
+        public void record(long seq, Phase phase) {
+            if (trace == null) {
+                return;
+            }
+            trace.record(id, seq, phase);
+            TraceEvents.emit(name, seq, phase.name());
+        }
+
+        /**
+         * Records an event of a data item, ignoring the other items.
+         */
+        public void record(QueueItem<?> item, Phase phase) {
+            if (trace == null) {
+                return;
+            }
+            if (item instanceof QueueSlot) {
+                record(((QueueSlot<?>) item).getSeq(), phase);
+            }
+        }
+    }
+}
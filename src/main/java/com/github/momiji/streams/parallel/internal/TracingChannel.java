@@ -0,0 +1,36 @@
+package com.github.momiji.streams.parallel.internal;
+
+/**
+ * Records when items are added to a channel, which is when they become visible to the consumer.
+ */
+public class TracingChannel<T> implements QueueChannel<T> {
+    private final QueueChannel<T> queue;
+    private final TraceRecorder.Stage trace;
+
+    public TracingChannel(QueueChannel<T> queue, TraceRecorder.Stage trace) {
+        this.queue = queue;
+        this.trace = trace;
+    }
+
+    @Override
+    public void add(QueueItem<T> item) {
+        // recorded before, as the item can be consumed as soon as it is added
+        trace.record(item, TraceRecorder.Phase.ENQUEUE);
+        queue.add(item);
+    }
+
+    @Override
+    public QueueItem<T> take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public QueueItem<T> poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads, which are not available before Java 21.
+ * <br><br>
+ * This is the baseline implementation, the Java 21 one being in the {@code META-INF/versions/21}
+ * overlay of the multi-release jar.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for each task, or null if not supported.
+     */
+    public static ExecutorService executor() {
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.momiji.streams.parallel.internal;
+
+import com.github.momiji.streams.parallel.WaitStrategy;
+
+import java.util.concurrent.locks.LockSupport;
+
+public enum WaitStrategies implements WaitStrategy {
+    BUSY_SPIN {
+        @Override
+        public void idle(int attempt) throws InterruptedException {
+            checkInterrupted();
+        }
+    },
+    YIELD {
+        @Override
+        public void idle(int attempt) throws InterruptedException {
+            checkInterrupted();
+            if (attempt >= SPINS) {
+                Thread.yield();
+            }
+        }
+    },
+    PARK {
+        @Override
+        public void idle(int attempt) throws InterruptedException {
+            checkInterrupted();
+            if (attempt >= SPINS + YIELDS) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (attempt >= SPINS) {
+                Thread.yield();
+            }
+        }
+    };
+
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
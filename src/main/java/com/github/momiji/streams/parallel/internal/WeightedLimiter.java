@@ -0,0 +1,85 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limits the total weight of the items in use, for example their size in bytes, to a given budget.
+ * <br><br>
+ * Items are admitted in arrival order: an item waiting for enough weight to be released blocks all items
+ * arriving after it, even those which would fit, so heavy items are never starved by a flow of light ones.
+ * <br><br>
+ * An item heavier than the budget is clamped to the budget: it waits until all other items have been
+ * released, and is then in use alone, instead of never being admitted.
+ */
+public class WeightedLimiter {
+    private final long budget;
+    // guarded by this
+    private long available;
+    private final Deque<Thread> waiters = new ArrayDeque<>();
+
+    public WeightedLimiter(long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("budget must be greater than 0");
+        }
+        this.budget = budget;
+        this.available = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the weight which is not in use.
+     */
+    public synchronized long getAvailable() {
+        return available;
+    }
+
+    /**
+     * Returns the weight actually taken for an item of the given weight, which is capped by the budget.
+     */
+    public long clamp(long weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight must be greater than or equal to 0");
+        }
+        return Math.min(weight, budget);
+    }
+
+    /**
+     * Waits until the given weight is available and all items arrived before have been admitted, then takes it.
+     *
+     * @return the weight taken, to be given back to {@link #release(long)}
+     */
+    public long acquire(long weight) throws InterruptedException {
+        long w = clamp(weight);
+        Thread current = Thread.currentThread();
+        synchronized (this) {
+            if (waiters.isEmpty() && available >= w) {
+                available -= w;
+                return w;
+            }
+            waiters.addLast(current);
+            try {
+                while (waiters.peekFirst() != current || available < w) {
+                    wait();
+                }
+                available -= w;
+            } finally {
+                waiters.remove(current);
+                // the next waiter may fit in what is left, or be first after an interrupt
+                notifyAll();
+            }
+            return w;
+        }
+    }
+
+    /**
+     * Gives back a weight returned by {@link #acquire(long)}.
+     */
+    public synchronized void release(long weight) {
+        available += weight;
+        notifyAll();
+    }
+}
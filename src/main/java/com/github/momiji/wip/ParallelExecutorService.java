@@ -1,39 +1,179 @@
 package com.github.momiji.wip;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public abstract class ParallelExecutorService<I, O, R> {
+/**
+ * Runs a parallel action on each submitted item, then a sequential action on each result, in submission order.
+ * <br><br>
+ * There is no consumer thread: a worker completing its parallel action stores the result in the slot of its
+ * sequence number, then runs the sequential action on all contiguous results, starting at the next expected
+ * one, unless another worker is already doing so. This is flat combining: the worker holding the drain runs
+ * the sequential actions of the others, which only publish their results and return to the parallel phase,
+ * and whoever publishes the next expected result while nobody drains takes over. Sequential actions are
+ * thus never run concurrently, always in submission order, and on whichever worker completes the next item.
+ * <br><br>
+ * Submitters are blocked once queueSize items have been submitted but not yet sequenced, which bounds
+ * memory and the slots of pending results.
+ * <br><br>
+ * After a failure, remaining parallel and sequential actions are skipped, {@link #aborted(Exception)} is called,
+ * and the failure is thrown by {@link #close()}, wrapped in a RuntimeException if it is a checked exception.
+ */
+public abstract class ParallelExecutorService<I, O, R> implements AutoCloseable {
 
     private final ExecutorService executor;
     private final Action<I, O> parallel;
     private final Action<O, R> sequential;
-    private final ConcurrentLinkedQueue<Result<O>> queue = new ConcurrentLinkedQueue<>();
-    private final Result<O> POISON_PILL = new Result<>(null, null);
+    private final int queueSize;
+    private final Semaphore permits;
+    private final AtomicReferenceArray<Result<O>> slots;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // next sequence number to run the sequential action on, only updated by the draining worker
+    private volatile long next;
+    private volatile boolean closed;
     private final AtomicReference<Exception> exception = new AtomicReference<>(null);
 
     public ParallelExecutorService(int nThreads, Action<I, O> parallel, Action<O, R> sequential) {
+        this(nThreads, nThreads * 2, parallel, sequential);
+    }
+
+    /**
+     * @param queueSize the maximum number of items submitted but not yet sequenced
+     */
+    public ParallelExecutorService(int nThreads, int queueSize, Action<I, O> parallel, Action<O, R> sequential) {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("nThreads must be greater than 0");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be greater than 0");
+        }
         this.executor = Executors.newFixedThreadPool(nThreads);
         this.parallel = parallel;
         this.sequential = sequential;
+        this.queueSize = queueSize;
+        this.permits = new Semaphore(queueSize);
+        this.slots = new AtomicReferenceArray<>(queueSize);
     }
 
-    public void submit(I item) {
-        executor.submit(() -> {
-            try {
-                if (exception.get() != null) {
-                    return;
+    /**
+     * Submits an item, waiting while queueSize items are pending. Items submitted after a failure are skipped.
+     *
+     * @throws IllegalStateException if the service is closed
+     */
+    public void submit(I item) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("service is closed");
+        }
+        permits.acquire();
+        // taken after the permit, so pending sequence numbers never span more than queueSize slots
+        long seq = submitted.getAndIncrement();
+        try {
+            executor.execute(() -> {
+                Result<O> result;
+                try {
+                    result = exception.get() != null
+                            ? new Result<>(null, exception.get())
+                            : new Result<>(parallel.accept(item), null);
+                } catch (Exception e) {
+                    result = new Result<>(null, abort(e));
                 }
-                queue.add(new Result(parallel.accept(item), null));
-            } catch (Exception e) {
-                e = abort(e);
-                queue.add(new Result(null, e));
+                complete(seq, result);
+            });
+        } catch (RejectedExecutionException e) {
+            // fill the slot anyway, so that the next items are still sequenced
+            complete(seq, new Result<>(null, abort(e)));
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes the result of an item, and runs the sequential action on the contiguous results if no other
+     * worker is doing it.
+     */
+    private void complete(long seq, Result<O> result) {
+        slots.set(index(seq), result);
+        for (; ; ) {
+            if (!draining.compareAndSet(false, true)) {
+                // the draining worker checks for this result before giving up the drain
+                return;
+            }
+            try {
+                drain();
             } finally {
-                queue.add(POISON_PILL);
+                draining.set(false);
+            }
+            // a result published while draining, but after the last check, would be left behind
+            if (slots.get(index(next)) == null) {
+                return;
             }
-        });
+        }
+    }
+
+    private void drain() {
+        long seq = next;
+        Result<O> result;
+        while ((result = slots.get(index(seq))) != null) {
+            slots.set(index(seq), null);
+            next = ++seq;
+            if (result.exception == null && exception.get() == null) {
+                try {
+                    completed(sequential.accept(result.result));
+                } catch (Exception e) {
+                    abort(e);
+                }
+            }
+            permits.release();
+        }
+    }
+
+    private int index(long seq) {
+        return (int) (seq % queueSize);
+    }
+
+    /**
+     * Stops accepting items, without waiting for pending ones.
+     */
+    public void shutdown() {
+        closed = true;
+        executor.shutdown();
+    }
+
+    /**
+     * Stops accepting items, and waits for all submitted items to be sequenced.
+     * <br><br>
+     * If the current thread is interrupted while waiting, the service is shut down without waiting any longer,
+     * and the interrupt flag is restored.
+     *
+     * @throws RuntimeException the first failure, if any, wrapped if it is a checked exception
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            // all permits are back once the last sequential action has run
+            permits.acquire(queueSize);
+            permits.release(queueSize);
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdown();
+            Thread.currentThread().interrupt();
+        }
+        Exception e = exception.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e != null) {
+            throw new RuntimeException(e);
+        }
     }
 
     private Exception abort(Exception e) {
@@ -47,6 +187,12 @@ public abstract class ParallelExecutorService<I, O, R> {
     protected void aborted(Exception e) {
     }
 
+    /**
+     * Called with the result of each sequential action, in submission order, by the worker running it.
+     */
+    protected void completed(R result) {
+    }
+
     public interface Action<I, O> {
         O accept(I item) throws Exception;
     }
@@ -12,12 +12,14 @@ import java.util.stream.StreamSupport;
 public class ParallelLimitedResource<T, R> {
     private final Stream<T> stream;
     private final Semaphore semaphore;
-    private final Semaphore results = new Semaphore(0);
     private final ExecutorService executor;
     private final boolean sort;
     private final Task<T, R> task;
     private final BlockingQueue<CompletableFuture<Result<R>>> futureQueue = new LinkedBlockingQueue<>();
     private final CompletableFuture<Result<R>> POISON_PILL = new CompletableFuture<>();
+    // unsorted mode: results in completion order, ended by END
+    private final BlockingQueue<Result<R>> completed = new LinkedBlockingQueue<>();
+    private final Result<R> END = new Result<>(null, null, null);
     private final AtomicReference<Exception> isAborted = new AtomicReference<>(null);
 
     public ParallelLimitedResource(Stream<T> stream, int nThreads, boolean sort, Task<T, R> task) {
@@ -39,79 +41,61 @@ public class ParallelLimitedResource<T, R> {
                         break;
                     }
                     T item = iterator.next();
+                    // acquire in input order, so the next result to consume always gets a permit
+                    semaphore.acquire();
                     CompletableFuture<Result<R>> future = CompletableFuture.supplyAsync(() -> {
                         try {
-                            semaphore.acquire();
                             if (isAborted.get() != null) {
-                                results.release();
-                                return new Result<>(null, semaphore, isAborted.get());
+                                return complete(new Result<>(null, semaphore, isAborted.get()));
                             }
                             R result = task.accept(item);
-                            results.release();
-                            return new Result<>(result, semaphore, null);
+                            return complete(new Result<>(result, semaphore, null));
                         } catch (Exception e) {
-                            results.release();
-                            return new Result<>(null, null, abort(e));
+                            return complete(new Result<>(null, null, abort(e)));
                         }
                     }, executor);
-                    futureQueue.add(future);
+                    if (sort) {
+                        futureQueue.add(future);
+                    }
                 }
                 executor.shutdown();
                 executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
             } catch (Exception e) {
                 Exception finalE = abort(e);
-                futureQueue.add(CompletableFuture.supplyAsync(() -> {
-                    results.release();
-                    return new Result<>(null, null, finalE);
-                }, executor));
+                if (sort) {
+                    futureQueue.add(CompletableFuture.completedFuture(new Result<>(null, null, finalE)));
+                } else {
+                    completed.add(new Result<>(null, null, finalE));
+                }
             } finally {
-                results.release();
-                futureQueue.add(POISON_PILL);
+                if (sort) {
+                    futureQueue.add(POISON_PILL);
+                } else {
+                    // all tasks have completed, unless aborted, in which case the failure is taken first
+                    completed.add(END);
+                }
             }
         });
 
         return StreamSupport.stream(new Spliterator<Result<R>>() {
-            private boolean poisonSeen;
             @Override
             public boolean tryAdvance(Consumer<? super Result<R>> action) {
                 try {
-                    CompletableFuture<Result<R>> future = null;
+                    Result<R> result;
                     if (sort) {
                         // take the first future to keep the order
-                        future = futureQueue.take();
+                        CompletableFuture<Result<R>> future = futureQueue.take();
+                        if (future == POISON_PILL) {
+                            return false;
+                        }
+                        result = future.get();
                     } else {
-                        // take the first future that is done
-                        // we can loop forever because results.acquire() will block until a future is near available
-                        results.acquire();
-                        while (future == null) {
-                            int count = 0;
-                            for (CompletableFuture<Result<R>> f : futureQueue) {
-                                ++count;
-                                if (f == POISON_PILL) {
-                                    if (count == 1) {
-                                        // poison pill is the first item, so we can break as it is the end
-                                        future = futureQueue.take();
-                                        break;
-                                    } else if (!poisonSeen){
-                                        // if we've just seen the poison pill for the first time, we need to
-                                        // wait for another future to be near available
-                                        poisonSeen = true;
-                                        results.acquire();
-                                        break;
-                                    }
-                                }
-                                else if (f.isDone()) {
-                                    // any other future that is done is good
-                                    future = f;
-                                    break;
-                                }
-                            }
+                        // take the first result that is done, results being queued as they complete
+                        result = completed.take();
+                        if (result == END) {
+                            return false;
                         }
                     }
-                    if (future == POISON_PILL) {
-                        return false;
-                    }
-                    Result<R> result = future.get();
                     if (result.exception != null) {
                         throw new RuntimeException(result.exception);
                     }
@@ -139,6 +123,16 @@ public class ParallelLimitedResource<T, R> {
         }, false);
     }
 
+    /**
+     * Queues a result in completion order, when unsorted.
+     */
+    private Result<R> complete(Result<R> result) {
+        if (!sort) {
+            completed.add(result);
+        }
+        return result;
+    }
+
     public Exception abort(Exception e) {
         if (isAborted.compareAndSet(null, e)) {
             semaphore.release(9999);
@@ -1,14 +1,22 @@
 package com.github.momiji.wip;
 
+/**
+ * An item with a ticket of a {@link TicketSequencer}, giving it a critical section in input order.
+ * <br><br>
+ * Releasing an item without acquiring it skips its critical section, without letting the next items in
+ * before the previous ones.
+ */
 public class SortedItem<T> {
     private final T item;
-    private final SortingLocks.Lock limiter;
+    private final TicketSequencer sequencer;
+    private final long ticket;
     private boolean acquired = false;
     private boolean released;
 
-    public SortedItem(T item, SortingLocks.Lock limiter) {
+    public SortedItem(T item, TicketSequencer sequencer, long ticket) {
         this.item = item;
-        this.limiter = limiter;
+        this.sequencer = sequencer;
+        this.ticket = ticket;
     }
 
     public T get() {
@@ -16,15 +24,15 @@ public class SortedItem<T> {
     }
 
     public void acquireSorted() {
-        if (!acquired && limiter != null) {
-            limiter.acquire();
+        if (!acquired && !released && sequencer != null) {
+            sequencer.acquire(ticket);
             acquired = true;
         }
     }
 
     public void releaseSorted() {
-        if (!released && limiter != null) {
-            limiter.release();
+        if (!released && sequencer != null) {
+            sequencer.release(ticket);
             released = true;
         }
     }
@@ -1,38 +1,47 @@
 package com.github.momiji.wip;
 
-import java.util.concurrent.Semaphore;
-
+/**
+ * Gives an ordered critical section to items processed in parallel, backed by a {@link TicketSequencer}.
+ */
 public class SortingLocks {
-    private Semaphore current = new Semaphore(1);
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final TicketSequencer sequencer;
 
     public SortingLocks() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of items taken but not yet released, above which next() waits
+     */
+    public SortingLocks(int capacity) {
+        this.sequencer = new TicketSequencer(capacity);
     }
 
     public Lock next() {
-        Semaphore c = current;
-        current = new Semaphore(0);
-        return new Lock(c, current);
+        return new Lock(sequencer, sequencer.next());
     }
 
     public <T> SortedItem<T> next(T item) {
-        return new SortedItem<>(item, next());
+        return new SortedItem<>(item, sequencer, sequencer.next());
     }
 
     public static class Lock {
-        private final Semaphore current;
-        private final Semaphore next;
+        private final TicketSequencer sequencer;
+        private final long ticket;
 
-        public Lock(Semaphore current, Semaphore next) {
-            this.current = current;
-            this.next = next;
+        public Lock(TicketSequencer sequencer, long ticket) {
+            this.sequencer = sequencer;
+            this.ticket = ticket;
         }
 
         public void acquire() {
-            current.acquireUninterruptibly();
+            sequencer.acquire(ticket);
         }
 
         public void release() {
-            next.release();
+            sequencer.release(ticket);
         }
     }
 }
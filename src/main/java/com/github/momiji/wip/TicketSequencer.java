@@ -0,0 +1,138 @@
+package com.github.momiji.wip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gives an ordered critical section to items processed in parallel, with one ticket per item.
+ * <br><br>
+ * Tickets are taken in input order with {@link #next()}. The holder of a ticket enters its critical section
+ * with {@link #acquire(long)} once all previous tickets have been released, and leaves it with
+ * {@link #release(long)}, which lets the next ticket in. A ticket can also be released without being acquired,
+ * for an item which does not need its critical section: it is then skipped once its turn comes, and a release
+ * passes the turn over all consecutive tickets already released, in a single step.
+ * <br><br>
+ * The state is a single counter, the ticket being served, with preallocated rings for the released tickets
+ * and the waiting threads, so taking and passing a ticket does not allocate. Waiting threads spin, then yield,
+ * then park until their turn. The capacity bounds the number of tickets taken but not yet passed:
+ * {@link #next()} waits when it is reached.
+ * <br><br>
+ * Waiting is not interruptible, as giving up a turn would block all the following tickets: an interrupted
+ * thread keeps waiting, and its interrupt status is restored once its turn comes.
+ */
+public class TicketSequencer {
+    private static final int SPINS = 128;
+    private static final int YIELDS = 16;
+
+    private final int mask;
+    private final AtomicLong serving = new AtomicLong();
+    // released tickets, stored as ticket + 1 so that a cleared slot never matches
+    private final AtomicLongArray released;
+    private final AtomicReferenceArray<Thread> waiters;
+    // only used by the thread taking tickets
+    private long nextTicket;
+    private volatile Thread producer;
+
+    /**
+     * @param capacity the maximum number of tickets taken but not yet passed, rounded up to a power of 2
+     */
+    public TicketSequencer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.released = new AtomicLongArray(size);
+        this.waiters = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * Returns the ticket of the next item, waiting while capacity tickets are pending.
+     * Must be called by one thread at a time, in input order.
+     */
+    public long next() {
+        long ticket = nextTicket;
+        if (ticket - serving.get() > mask) {
+            producer = Thread.currentThread();
+            int attempt = 0;
+            boolean interrupted = false;
+            while (ticket - serving.get() > mask) {
+                interrupted |= idle(attempt++);
+            }
+            producer = null;
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        nextTicket = ticket + 1;
+        return ticket;
+    }
+
+    /**
+     * Returns the ticket being served, all tickets before it having been released.
+     */
+    public long getServing() {
+        return serving.get();
+    }
+
+    /**
+     * Waits until all tickets before the given one have been released.
+     */
+    public void acquire(long ticket) {
+        if (serving.get() == ticket) {
+            return;
+        }
+        int index = (int) (ticket & mask);
+        waiters.set(index, Thread.currentThread());
+        int attempt = 0;
+        boolean interrupted = false;
+        while (serving.get() != ticket) {
+            interrupted |= idle(attempt++);
+        }
+        // the slot may already be used by the ticket of the next lap
+        waiters.compareAndSet(index, Thread.currentThread(), null);
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Releases a ticket, acquired or not, and passes the turn over all consecutive released tickets.
+     */
+    public void release(long ticket) {
+        released.set((int) (ticket & mask), ticket + 1);
+        for (; ; ) {
+            long s = serving.get();
+            if (released.get((int) (s & mask)) != s + 1) {
+                // the ticket being served is not released yet, its holder will pass the turn
+                break;
+            }
+            if (serving.compareAndSet(s, s + 1)) {
+                Thread waiter = waiters.get((int) ((s + 1) & mask));
+                if (waiter != null) LockSupport.unpark(waiter);
+            }
+        }
+        Thread p = producer;
+        if (p != null) LockSupport.unpark(p);
+    }
+
+    /**
+     * Spins, then yields, then parks until unparked by a release, a stale unpark only causing another check.
+     *
+     * @return true if the thread was interrupted, its interrupt status being cleared so that the next park
+     * does not return immediately
+     */
+    private boolean idle(int attempt) {
+        if (attempt < SPINS) {
+            return false;
+        }
+        if (attempt < SPINS + YIELDS) {
+            Thread.yield();
+            return false;
+        }
+        // a release happening before the park makes it return immediately, as the unpark is not lost
+        LockSupport.park(this);
+        return Thread.interrupted();
+    }
+}
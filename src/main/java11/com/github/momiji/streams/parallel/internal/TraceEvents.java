@@ -0,0 +1,47 @@
+package com.github.momiji.streams.parallel.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emits trace events to JDK Flight Recorder, as com.github.momiji.streams.parallel.ItemPhase events.
+ * The thread and time of the event are recorded by JFR.
+ */
+public class TraceEvents {
+    private TraceEvents() {
+    }
+
+    public static boolean isSupported() {
+        return true;
+    }
+
+    public static void emit(String stage, long seq, String phase) {
+        ItemPhaseEvent event = new ItemPhaseEvent();
+        if (event.isEnabled()) {
+            event.stage = stage;
+            event.seq = seq;
+            event.phase = phase;
+            event.commit();
+        }
+    }
+
+    @Name("com.github.momiji.streams.parallel.ItemPhase")
+    @Label("Parallel Stream Item Phase")
+    @Description("An item of a traced parallel stage is submitted, started, ended, enqueued or consumed")
+    @Category("Parallel Streams")
+    @StackTrace(false)
+    static class ItemPhaseEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Sequence Number")
+        long seq;
+
+        @Label("Phase")
+        String phase;
+    }
+}
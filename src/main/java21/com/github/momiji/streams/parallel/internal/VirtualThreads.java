@@ -0,0 +1,26 @@
+package com.github.momiji.streams.parallel.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, Java 21 implementation.
+ */
+public final class VirtualThreads {
+    private static final ExecutorService EXECUTOR = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("parallel-stream-virtual-", 1).factory());
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for each task, or null if not supported.
+     */
+    public static ExecutorService executor() {
+        return EXECUTOR;
+    }
+}
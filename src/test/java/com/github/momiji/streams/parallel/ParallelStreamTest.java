@@ -1,15 +1,42 @@
 package com.github.momiji.streams.parallel;
 
+import com.github.momiji.streams.parallel.internal.VirtualThreads;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.parallel.Execution;
 import org.junit.jupiter.api.parallel.ExecutionMode;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -156,6 +183,821 @@ class ParallelStreamTest {
         assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
     }
 
+    /**
+     * Ensure that the producer does not read more items than the queue size ahead of the consumer.
+     */
+    @Test
+    void backpressure() {
+        AtomicLong read = new AtomicLong();
+        AtomicLong consumed = new AtomicLong();
+        //
+        ParallelStream.of(Stream.iterate(0, i -> i + 1).limit(100_000).peek(e -> read.incrementAndGet()))
+                .executor(4, 10)
+                .parallelMap(e -> e)
+                .stream()
+                .forEach(e -> {
+                    assertTrue(read.get() - consumed.get() <= 10);
+                    consumed.incrementAndGet();
+                });
+        //
+        assertEquals(100_000, consumed.get());
+    }
+
+    /**
+     * Same as backpressure(), with sorted().
+     */
+    @Test
+    void backpressureSorted() {
+        AtomicLong read = new AtomicLong();
+        List<Integer> res = new ArrayList<>();
+        //
+        ParallelStream.of(Stream.iterate(0, i -> i + 1).limit(100_000).peek(e -> read.incrementAndGet()))
+                .executor(4, 10)
+                .sorted()
+                .parallelMap(e -> e)
+                .stream()
+                .forEach(e -> {
+                    assertTrue(read.get() - res.size() <= 10);
+                    res.add(e);
+                });
+        //
+        assertEquals(Stream.iterate(0, i -> i + 1).limit(100_000).collect(Collectors.toList()), res);
+    }
+
+    @Test
+    void parallelMapBatch() {
+        Queue<Integer> res = new ConcurrentLinkedQueue<>();
+        //
+        ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(7, e -> {
+                    Thread.sleep((long) (Math.random() * 100));
+                    return e;
+                })
+                .stream()
+                .forEach(res::add);
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    void parallelMapBatchSorted() {
+        Queue<Integer> res = new ConcurrentLinkedQueue<>();
+        //
+        ParallelStream.of(values())
+                .executor(4, 10)
+                .sorted()
+                .parallelMap(3, e -> {
+                    if (e == 1) Thread.sleep(500);
+                    return e;
+                })
+                .stream()
+                .forEach(res::add);
+        //
+        assertEquals(list(), new ArrayList<>(res));
+    }
+
+    @Test
+    void parallelMapBatchException() {
+        assertThrows(ParallelException.class, () -> {
+            ParallelStream.of(values())
+                    .executor(4, 100)
+                    .parallelMap(7, e -> {
+                        if (e == 5) throw new Exception("oops");
+                        return e;
+                    })
+                    .run();
+        });
+    }
+
+    /**
+     * Ensure that an external executor is used, with concurrency still limited by nThreads.
+     */
+    @Test
+    void executorService() {
+        ExecutorService service = Executors.newFixedThreadPool(8, r -> new Thread(r, "external"));
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Queue<String> threads = new ConcurrentLinkedQueue<>();
+        //
+        try {
+            ParallelStream.of(values())
+                    .executor(service)
+                    .executor(2, 100)
+                    .parallelMap(e -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        threads.add(Thread.currentThread().getName());
+                        Thread.sleep(50);
+                        running.decrementAndGet();
+                        return e;
+                    })
+                    .run();
+        } finally {
+            service.shutdown();
+        }
+        //
+        assertEquals(Collections.singleton("external"), new HashSet<>(threads));
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    /**
+     * Ensure that pipelines reuse the threads of the default executor.
+     */
+    @Test
+    void defaultExecutor() {
+        Queue<String> threads = new ConcurrentLinkedQueue<>();
+        //
+        for (int i = 0; i < 10; i++) {
+            ParallelStream.of(values())
+                    .executor(2, 100)
+                    .parallelMap(e -> {
+                        threads.add(Thread.currentThread().getName());
+                        return e;
+                    })
+                    .run();
+        }
+        //
+        assertTrue(threads.stream().allMatch(t -> t.startsWith("parallel-stream-")));
+    }
+
+    /**
+     * Ensure that tasks run on virtual threads when available, or fall back to the default executor on older
+     * JVMs. Surefire runs the tests against the classes of the baseline, so virtual threads are only used when
+     * running against the multi-release jar, see {@link VirtualThreadsIT}.
+     */
+    @Test
+    void virtualThreads() {
+        Queue<Integer> res = new ConcurrentLinkedQueue<>();
+        Set<Boolean> virtual = ConcurrentHashMap.newKeySet();
+        //
+        ParallelStream.of(values())
+                .executor(20, 100)
+                .virtualThreads()
+                .parallelMap(e -> {
+                    virtual.add(isVirtual(Thread.currentThread()));
+                    Thread.sleep(200);
+                    return e;
+                })
+                .stream()
+                .forEach(res::add);
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+        assertEquals(Collections.singleton(VirtualThreads.isSupported()), virtual);
+    }
+
+    /**
+     * Returns true if the thread is virtual, Thread.isVirtual() not being available before Java 21.
+     */
+    private static boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    @Test
+    void waitStrategy() {
+        for (WaitStrategy waitStrategy : Arrays.asList(WaitStrategy.busySpin(), WaitStrategy.yielding(), WaitStrategy.parking())) {
+            List<Integer> res = ParallelStream.of(Stream.iterate(0, i -> i + 1).limit(10_000))
+                    .executor(4, 10)
+                    .waitStrategy(waitStrategy)
+                    .parallelMap(e -> e)
+                    .stream()
+                    .sorted()
+                    .collect(Collectors.toList());
+            //
+            assertEquals(Stream.iterate(0, i -> i + 1).limit(10_000).collect(Collectors.toList()), res);
+        }
+    }
+
+    @Test
+    void waitStrategySorted() {
+        Queue<Integer> res = new ConcurrentLinkedQueue<>();
+        //
+        ParallelStream.of(values())
+                .executor(4, 4)
+                .waitStrategy(WaitStrategy.parking())
+                .sorted()
+                .parallelMap(e -> {
+                    Thread.sleep((long) (Math.random() * 100));
+                    return e;
+                })
+                .stream()
+                .forEach(res::add);
+        //
+        assertEquals(list(), new ArrayList<>(res));
+    }
+
+    @Test
+    void waitStrategyException() {
+        assertThrows(ParallelException.class, () -> {
+            ParallelStream.of(values())
+                    .executor(4, 4)
+                    .waitStrategy(WaitStrategy.parking())
+                    .parallelMap(e -> {
+                        if (e == 5) throw new Exception("oops");
+                        return e;
+                    })
+                    .run();
+        });
+    }
+
+    /**
+     * Ensure that async mappers are limited by maxInFlight, and not by the number of threads.
+     */
+    @Test
+    void parallelMapAsync() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Queue<Integer> res = new ConcurrentLinkedQueue<>();
+        //
+        try {
+            ParallelStream.of(Stream.iterate(0, i -> i + 1).limit(200))
+                    .executor(1, 100)
+                    .parallelMapAsync(e -> {
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        CompletableFuture<Integer> future = new CompletableFuture<>();
+                        scheduler.schedule(() -> {
+                            inFlight.decrementAndGet();
+                            future.complete(e);
+                        }, (long) (Math.random() * 100), TimeUnit.MILLISECONDS);
+                        return future;
+                    }, 50)
+                    .stream()
+                    .forEach(res::add);
+        } finally {
+            scheduler.shutdown();
+        }
+        //
+        assertEquals(Stream.iterate(0, i -> i + 1).limit(200).collect(Collectors.toList()), res.stream().sorted().collect(Collectors.toList()));
+        assertTrue(maxInFlight.get() <= 50);
+        assertTrue(maxInFlight.get() > 1);
+    }
+
+    @Test
+    void parallelMapAsyncSorted() {
+        Queue<Integer> res = new ConcurrentLinkedQueue<>();
+        //
+        ParallelStream.of(values())
+                .executor(1, 100)
+                .sorted()
+                .parallelMapAsync(e -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep((long) (Math.random() * 100));
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    return e;
+                }), 10)
+                .stream()
+                .forEach(res::add);
+        //
+        assertEquals(list(), new ArrayList<>(res));
+    }
+
+    @Test
+    void parallelMapAsyncException() {
+        assertThrows(ParallelException.class, () -> {
+            ParallelStream.of(values())
+                    .parallelMapAsync(e -> {
+                        CompletableFuture<Integer> future = new CompletableFuture<>();
+                        if (e == 5) future.completeExceptionally(new Exception("oops"));
+                        else future.complete(e);
+                        return future;
+                    }, 10)
+                    .run();
+        });
+    }
+
+    /**
+     * Ensure that items with the same key are mapped one at a time and emitted in input order,
+     * while a slow key does not block the other keys.
+     */
+    @Test
+    void parallelMapKeyed() {
+        Map<Integer, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicBoolean overlap = new AtomicBoolean();
+        List<Integer> res = new ArrayList<>();
+        //
+        ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMapKeyed(e -> e % 4, e -> {
+                    if (running.computeIfAbsent(e % 4, k -> new AtomicInteger()).incrementAndGet() > 1) {
+                        overlap.set(true);
+                    }
+                    Thread.sleep(e == 4 ? 1000 : (long) (Math.random() * 50));
+                    running.get(e % 4).decrementAndGet();
+                    return e;
+                })
+                .stream()
+                .forEach(res::add);
+        //
+        System.out.println(res);
+        assertFalse(overlap.get());
+        for (int key = 0; key < 4; key++) {
+            int k = key;
+            List<Integer> keyed = res.stream().filter(e -> e % 4 == k).collect(Collectors.toList());
+            assertEquals(values().filter(e -> e % 4 == k).collect(Collectors.toList()), keyed);
+        }
+        assertTrue(res.indexOf(4) > res.indexOf(19));
+    }
+
+    /**
+     * Simulate a downstream saturating above 8 concurrent calls: the limit must grow from its minimum,
+     * and back off before reaching its maximum.
+     */
+    @Test
+    void adaptive() {
+        AtomicInteger running = new AtomicInteger();
+        //
+        ParallelStream<Integer> res = ParallelStream.of(Stream.iterate(0, i -> i + 1).limit(2000))
+                .executor(2, 100)
+                .adaptive(2, 64)
+                .parallelMap(e -> {
+                    int n = running.incrementAndGet();
+                    Thread.sleep(Math.max(2, n / 4));
+                    running.decrementAndGet();
+                    return e;
+                });
+        res.run();
+        //
+        System.out.println(res.getConcurrencyLimit());
+        assertTrue(res.getConcurrencyLimit() > 2);
+        assertTrue(res.getConcurrencyLimit() < 64);
+    }
+
+    /**
+     * Ensure that consecutive stages with the same configuration are fused: both mappers run on the same
+     * thread for each item, and the intermediate stream can no more be used.
+     */
+    @Test
+    void fusion() {
+        Map<Integer, Thread> threads = new ConcurrentHashMap<>();
+        AtomicBoolean sameThread = new AtomicBoolean(true);
+        //
+        ParallelStream<Integer> first = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> {
+                    threads.put(e, Thread.currentThread());
+                    return e;
+                });
+        ParallelStream<Integer> second = first
+                .parallelMap(e -> {
+                    if (threads.get(e) != Thread.currentThread()) sameThread.set(false);
+                    return e;
+                });
+        List<Integer> res = second.stream().collect(Collectors.toList());
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+        assertTrue(sameThread.get());
+        assertEquals(20, second.getStats().getTaskCount());
+        assertNull(first.getStats());
+        assertThrows(IllegalStateException.class, first::stream);
+    }
+
+    /**
+     * Ensure that a stage mapping to primitives is fused with the parallelMap producing its items: the items
+     * are chunked before the first mapper, which runs on the same thread as the second one.
+     */
+    @Test
+    void fusionChunks() {
+        Map<Integer, Thread> threads = new ConcurrentHashMap<>();
+        AtomicBoolean sameThread = new AtomicBoolean(true);
+        //
+        ParallelStream<Integer> first = ParallelStream.of(values())
+                .executor(4, 100)
+                .sorted()
+                .parallelMap(e -> {
+                    threads.put(e, Thread.currentThread());
+                    return e;
+                })
+                .sorted();
+        ParallelIntStream second = first
+                .parallelMapToInt(5, e -> {
+                    if (threads.get(e) != Thread.currentThread()) sameThread.set(false);
+                    return e * 2;
+                });
+        int[] res = second.stream().toArray();
+        //
+        assertArrayEquals(values().mapToInt(e -> e * 2).toArray(), res);
+        assertTrue(sameThread.get());
+        assertEquals(4, second.getStats().getTaskCount());
+        assertNull(first.getStats());
+        assertThrows(IllegalStateException.class, first::stream);
+    }
+
+    /**
+     * Ensure that stages separated by a barrier are not fused.
+     */
+    @Test
+    void barrier() {
+        ParallelStream<Integer> first = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> e)
+                .barrier();
+        ParallelStream<Integer> second = first
+                .parallelMap(e -> e);
+        List<Integer> res = second.stream().collect(Collectors.toList());
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+        assertEquals(20, first.getStats().getTaskCount());
+        assertEquals(20, second.getStats().getTaskCount());
+    }
+
+    @Test
+    void parallelIntStream() {
+        int[] res = ParallelIntStream.of(IntStream.rangeClosed(1, 20), 3)
+                .executor(4, 100)
+                .sorted()
+                .parallelMap(i -> {
+                    Thread.sleep((long) (Math.random() * 100));
+                    return i * 2;
+                })
+                .stream()
+                .toArray();
+        //
+        assertArrayEquals(values().mapToInt(e -> e * 2).toArray(), res);
+    }
+
+    /**
+     * Ensure that items can be mapped to primitives and back, in chunks.
+     */
+    @Test
+    void parallelPrimitiveStreams() {
+        List<String> res = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMapToLong(7, e -> e * 1_000_000_000L)
+                .parallelMapToObj(l -> l / 1_000_000_000L + "")
+                .stream()
+                .collect(Collectors.toList());
+        double sum = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMapToDouble(e -> e / 2.0)
+                .parallelMap(d -> d * 2)
+                .stream()
+                .sum();
+        ParallelIntStream empty = ParallelIntStream.of(IntStream.empty());
+        //
+        assertEquals(list(), res.stream().map(Integer::valueOf).sorted().collect(Collectors.toList()));
+        assertEquals(210.0, sum);
+        assertEquals(0, empty.parallelMap(i -> i).stream().count());
+    }
+
+    @Test
+    void parallelCollect() {
+        List<Integer> res = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelCollect(Collectors.toList());
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    void parallelReduce() {
+        int sum = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelReduce(0, (a, e) -> a + e, Integer::sum);
+        int empty = ParallelStream.of(Stream.<Integer>empty())
+                .executor(4, 100)
+                .parallelReduce(0, (a, e) -> a + e, Integer::sum);
+        //
+        assertEquals(210, sum);
+        assertEquals(0, empty);
+    }
+
+    /**
+     * Ensure that a parallelMap followed by parallelCollect maps and accumulates each item on the same thread,
+     * with one container per thread.
+     */
+    @Test
+    void parallelCollectFused() {
+        AtomicInteger containers = new AtomicInteger();
+        //
+        List<Boolean> res = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> {
+                    Thread.sleep(10);
+                    return Thread.currentThread();
+                })
+                .parallelCollect(Collector.<Thread, List<Boolean>>of(
+                        () -> {
+                            containers.incrementAndGet();
+                            return new ArrayList<>();
+                        },
+                        (l, t) -> l.add(t == Thread.currentThread()),
+                        (a, b) -> {
+                            a.addAll(b);
+                            return a;
+                        }));
+        //
+        assertEquals(20, res.size());
+        assertFalse(res.contains(false));
+        assertTrue(containers.get() <= 4);
+    }
+
+    @Test
+    void parallelGroupBy() {
+        Map<Integer, Long> counts = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> e * 10)
+                .parallelGroupBy(e -> e % 3, Aggregator.counting());
+        Map<Boolean, Double> sums = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelGroupBy(e -> e > 10 ? true : null, Aggregator.summingDouble(e -> e / 2.0));
+        Map<Integer, Long> max = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelGroupBy(e -> e % 2, Aggregator.maxLong(e -> e));
+        //
+        assertEquals(values().collect(Collectors.groupingBy(e -> e * 10 % 3, Collectors.counting())), counts);
+        assertEquals(2, sums.size());
+        assertEquals(77.5, sums.get(true));
+        assertEquals(27.5, sums.get(null));
+        assertEquals(20, max.get(0));
+        assertEquals(19, max.get(1));
+    }
+
+    /**
+     * Ensure that groups are not lost when the stripes of the map grow.
+     */
+    @Test
+    void parallelGroupByManyKeys() {
+        Map<Integer, Long> res = ParallelStream.of(Stream.iterate(0, i -> i + 1).limit(100_000))
+                .executor(8, 100)
+                .parallelGroupBy(e -> e % 10_000, Aggregator.summingLong(e -> 1));
+        //
+        assertEquals(10_000, res.size());
+        assertTrue(res.values().stream().allMatch(v -> v == 10));
+    }
+
+    @Test
+    void parallelCollectException() {
+        assertThrows(ParallelException.class, () -> ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> {
+                    if (e == 5) throw new Exception("oops");
+                    return e;
+                })
+                .parallelCollect(Collectors.toList()));
+    }
+
+    /**
+     * Ensure that unsorted results can be consumed by a parallel stream, with several consumer threads.
+     */
+    @Test
+    void parallelConsumer() throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        //
+        List<Integer> res = pool.submit(() -> ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> e)
+                .stream()
+                .parallel()
+                .peek(e -> {
+                    threads.add(Thread.currentThread().getName());
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                })
+                .collect(Collectors.toList())).get();
+        pool.shutdown();
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+        assertTrue(threads.size() > 1);
+    }
+
+    /**
+     * Ensure that a failure is seen by all consumers of a parallel stream.
+     */
+    @Test
+    void parallelConsumerException() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        //
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> pool.submit(() -> ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> {
+                    if (e == 10) throw new Exception("oops");
+                    return e;
+                })
+                .stream()
+                .parallel()
+                .peek(e -> LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10)))
+                .collect(Collectors.toList())).get());
+        pool.shutdown();
+        //
+        assertTrue(ex.getCause() instanceof ParallelException);
+    }
+
+    /**
+     * Ensure that the size of the input is estimated by the results, without making them SIZED, so that count()
+     * still runs the stage, and that sorted results can not be split.
+     */
+    @Test
+    void sized() {
+        Spliterator<Integer> sized = ParallelStream.of(values())
+                .executor(4, 100)
+                .parallelMap(e -> e)
+                .stream()
+                .spliterator();
+        Spliterator<Integer> unsized = ParallelStream.of(values().filter(e -> true))
+                .executor(4, 100)
+                .parallelMap(e -> e)
+                .stream()
+                .spliterator();
+        Spliterator<Integer> sorted = ParallelStream.of(values())
+                .executor(4, 100)
+                .sorted()
+                .parallelMap(e -> e)
+                .stream()
+                .spliterator();
+        //
+        assertEquals(20, sized.estimateSize());
+        assertEquals(-1, sized.getExactSizeIfKnown());
+        assertEquals(Long.MAX_VALUE, unsized.estimateSize());
+        assertNull(sorted.trySplit());
+        assertTrue(sorted.hasCharacteristics(Spliterator.ORDERED));
+        List<Integer> res = new ArrayList<>();
+        sorted.forEachRemaining(res::add);
+        assertEquals(list(), res);
+        sized.forEachRemaining(e -> {
+        });
+        assertEquals(0, sized.estimateSize());
+        unsized.forEachRemaining(e -> {
+        });
+    }
+
+    /**
+     * Ensure that closing the stream after a short-circuiting operation interrupts the running tasks,
+     * and closes the input.
+     */
+    @Test
+    void close() throws InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger interrupted = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        //
+        try (Stream<Integer> stream = ParallelStream.of(Stream.iterate(0, i -> i + 1).onClose(() -> closed.set(true)))
+                .executor(4, 10)
+                .parallelMap(e -> {
+                    started.incrementAndGet();
+                    try {
+                        if (e > 0) Thread.sleep(10_000);
+                    } catch (InterruptedException ex) {
+                        interrupted.incrementAndGet();
+                        throw ex;
+                    }
+                    return e;
+                })
+                .stream()) {
+            assertEquals(0, stream.findFirst().get());
+        }
+        for (int i = 0; i < 20 && interrupted.get() == 0; i++) {
+            Thread.sleep(100);
+        }
+        //
+        assertTrue(closed.get());
+        assertTrue(interrupted.get() > 0);
+        assertTrue(started.get() <= 10);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+     * Ensure that a stream abandoned after a short-circuiting operation is cancelled once garbage collected.
+     */
+    @Test
+    void abandoned() throws InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        //
+        Optional<Integer> first = ParallelStream.of(Stream.iterate(0, i -> i + 1).onClose(() -> closed.set(true)))
+                .executor(2, 10)
+                .parallelMap(e -> e)
+                .stream()
+                .findFirst();
+        for (int i = 0; i < 50 && !closed.get(); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        //
+        assertEquals(0, first.get());
+        assertTrue(closed.get());
+    }
+
+    /**
+     * Ensure that a slow stage is visible in the stats: its consumer waits for results, while the producer
+     * of the fast stage before it waits for queue permits.
+     */
+    @Test
+    void stats() {
+        ParallelStream<Integer> fast = ParallelStream.of(values())
+                .executor(2, 2)
+                .parallelMap(e -> e);
+        ParallelStream<Integer> slow = fast
+                .executor(1, 2)
+                .parallelMap(e -> {
+                    Thread.sleep(10);
+                    return e;
+                });
+        List<Integer> res = slow.stream().collect(Collectors.toList());
+        //
+        assertEquals(list(), res.stream().sorted().collect(Collectors.toList()));
+        assertNull(ParallelStream.of(values()).getStats());
+        for (StageStats stats : Arrays.asList(fast.getStats(), slow.getStats())) {
+            assertEquals(20, stats.getItemsIn());
+            assertEquals(20, stats.getItemsOut());
+            assertEquals(20, stats.getTaskCount());
+            assertEquals(0, stats.getQueueDepth());
+            assertEquals(0, stats.getBacklog());
+        }
+        assertTrue(fast.getStats().getProducerWaitNanos() > TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(slow.getStats().getConsumerWaitNanos() > TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(slow.getStats().getTaskLatencyP50Nanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(slow.getStats().getTaskLatencyP99Nanos() <= slow.getStats().getTaskLatencyMaxNanos());
+        assertTrue(fast.getStats().getTaskLatencyP50Nanos() < TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    /**
+     * Ensure that all phases of all items of both stages are traced.
+     */
+    @Test
+    void trace() {
+        ParallelTrace trace = new ParallelTrace(1000);
+        //
+        ParallelStream.of(values())
+                .executor(4, 100)
+                .trace(trace)
+                .sorted()
+                .parallelMap(e -> {
+                    if (e == 1) Thread.sleep(100);
+                    return e;
+                })
+                .parallelMap(e -> e)
+                .run();
+        String json = trace.toChromeTrace();
+        //
+        assertTrue(json.startsWith("{\"traceEvents\":["));
+        assertTrue(json.endsWith("]}"));
+        assertEquals(40, count(json, "\"ph\":\"X\""));
+        for (String span : Arrays.asList("item", "wait", "map", "reorder", "output")) {
+            assertEquals(20, count(json, "\"name\":\"" + span + "[^\"]*\",\"cat\":\"stage-0\",\"ph\":\"b\""));
+            assertEquals(20, count(json, "\"name\":\"" + span + "[^\"]*\",\"cat\":\"stage-1\",\"ph\":\"e\""));
+        }
+    }
+
+    /**
+     * Ensure that only the threads of the events still in the ring are named, when older events are overwritten.
+     */
+    @Test
+    void traceOverwritten() {
+        ParallelTrace trace = new ParallelTrace(2);
+        //
+        for (int i = 0; i < 5; i++) {
+            ParallelStream.of(values())
+                    .executor(4, 100)
+                    .trace(trace)
+                    .parallelMap(e -> e)
+                    .run();
+        }
+        String json = trace.toChromeTrace();
+        //
+        assertTrue(count(json, "\"name\":\"thread_name\"") <= 2);
+    }
+
+    private static int count(String s, String regex) {
+        int count = 0;
+        Matcher matcher = Pattern.compile(regex).matcher(s);
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Ensure that the stage is registered as an MXBean while it runs, and unregistered when it is done.
+     */
+    @Test
+    void jmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.github.momiji.streams.parallel:type=Stage,name=\"jmx-test\",*");
+        CountDownLatch latch = new CountDownLatch(1);
+        //
+        Stream<Integer> stream = ParallelStream.of(values())
+                .executor(4, 100)
+                .jmx("jmx-test")
+                .parallelMap(e -> {
+                    latch.await();
+                    return e;
+                })
+                .stream();
+        Set<ObjectName> names = server.queryNames(pattern, null);
+        assertEquals(1, names.size());
+        assertEquals(4, server.getAttribute(names.iterator().next(), "ConcurrencyLimit"));
+        latch.countDown();
+        assertEquals(20, stream.count());
+        //
+        assertTrue(server.queryNames(pattern, null).isEmpty());
+    }
+
     @Test
     void limited() {
         Queue<String> res = new ConcurrentLinkedQueue<>();
@@ -183,6 +1025,216 @@ class ParallelStreamTest {
         assertFalse(String.join("", res).contains("+++++"));
     }
 
+    /**
+     * Ensure that two tenants sharing a scheduler get threads in proportion to their weights:
+     * when the heavier one is done, the lighter one has done about a third of its items.
+     */
+    @Test
+    void fairScheduler() throws Exception {
+        FairScheduler scheduler = new FairScheduler(2);
+        AtomicInteger doneB = new AtomicInteger();
+        // the first tasks are slow while classes load, keep them out of the tenants under test
+        ParallelStream.of(values())
+                .executor(2, 10)
+                .tenant(scheduler.tenant("warmup", 1, 2))
+                .parallelMap(e -> e)
+                .run();
+        //
+        CompletableFuture<Integer> b = CompletableFuture.supplyAsync(() -> ParallelStream.of(IntStream.range(0, 100).boxed())
+                .executor(2, 10)
+                .tenant(scheduler.tenant("b", 1, 2))
+                .parallelMap(e -> {
+                    Thread.sleep(5);
+                    doneB.incrementAndGet();
+                    return e;
+                })
+                .stream()
+                .collect(Collectors.toList())
+                .size());
+        int a = ParallelStream.of(IntStream.range(0, 100).boxed())
+                .executor(2, 10)
+                .tenant(scheduler.tenant("a", 3, 2))
+                .parallelMap(e -> {
+                    Thread.sleep(5);
+                    return e;
+                })
+                .stream()
+                .collect(Collectors.toList())
+                .size();
+        int doneBWhenA = doneB.get();
+        //
+        assertEquals(100, a);
+        assertEquals(100, b.get());
+        System.out.println("b done when a is done: " + doneBWhenA);
+        assertTrue(doneBWhenA > 5 && doneBWhenA < 70);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Ensure that a tenant never runs more tasks at the same time than its cap, whatever nThreads.
+     */
+    @Test
+    void fairSchedulerCap() {
+        FairScheduler scheduler = new FairScheduler(4);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        //
+        List<Integer> res = ParallelStream.of(values())
+                .executor(4, 10)
+                .tenant(scheduler.tenant("capped", 1, 1))
+                .parallelMap(e -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return e;
+                })
+                .stream()
+                .sorted()
+                .collect(Collectors.toList());
+        //
+        assertEquals(list(), res);
+        assertEquals(1, maxRunning.get());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Ensure that a task throwing an Error does not stop the thread of the scheduler.
+     */
+    @Test
+    void fairSchedulerError() throws InterruptedException {
+        FairScheduler scheduler = new FairScheduler(1);
+        FairScheduler.Tenant tenant = scheduler.tenant("failing", 1, 1);
+        CountDownLatch latch = new CountDownLatch(1);
+        //
+        tenant.execute(() -> {
+            throw new Error("oops");
+        });
+        tenant.execute(latch::countDown);
+        //
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+
+    /**
+     * Ensure that a straggler of an idempotent mapper is hedged, so that sorted results do not wait for it,
+     * and that the result of the interrupted attempt is discarded.
+     */
+    @Test
+    void hedged() {
+        Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        //
+        ParallelStream<Integer> mapped = ParallelStream.of(IntStream.range(0, 60).boxed())
+                .executor(4, 10)
+                .sorted()
+                .hedged(90, 0.1)
+                .parallelMap(ParallelFunction.idempotent(e -> {
+                    int attempt = attempts.computeIfAbsent(e, k -> new AtomicInteger()).incrementAndGet();
+                    // the first attempt of item 50 is stuck, as a call to a slow replica
+                    Thread.sleep(e == 50 && attempt == 1 ? 5000 : 5);
+                    return attempt == 1 ? e : -e;
+                }));
+        List<Integer> res = mapped.stream().collect(Collectors.toList());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        //
+        assertEquals(IntStream.range(0, 60).map(e -> e == 50 ? -e : e).boxed().collect(Collectors.toList()), res);
+        assertEquals(2, attempts.get(50).get());
+        assertTrue(elapsed < 2000);
+        assertTrue(mapped.getStats().getHedgedTasks() >= 1);
+        assertTrue(mapped.getStats().getHedgedTasks() <= 6);
+    }
+
+    /**
+     * Ensure that the attempt losing the hedge does not release the limited item returned by a pass-through
+     * mapper, which is still held downstream.
+     */
+    @Test
+    void hedgedLimited() {
+        AtomicInteger inUse = new AtomicInteger();
+        AtomicInteger maxInUse = new AtomicInteger();
+        Set<Integer> attempted = ConcurrentHashMap.newKeySet();
+        //
+        ParallelStream.of(IntStream.range(0, 60).boxed())
+                .executor(4, 10)
+                .limited(4)
+                .map(e -> {
+                    maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                    return e;
+                })
+                .hedged(90, 0.1)
+                .parallelMap(ParallelFunction.idempotent(e -> {
+                    if (e.get() == 45 && attempted.add(e.get())) {
+                        // the first attempt of item 45 is stuck, and does not respond to interrupts
+                        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+                        while (System.nanoTime() < end) {
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                        }
+                    } else {
+                        Thread.sleep(5);
+                    }
+                    return e;
+                }))
+                .stream()
+                .forEach(e -> {
+                    if (e.get() == 45) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(300));
+                    inUse.decrementAndGet();
+                    e.release();
+                });
+        //
+        assertEquals(4, maxInUse.get());
+    }
+
+    /**
+     * Ensure that a mapper not declared idempotent is never mapped twice, even when hedging.
+     */
+    @Test
+    void hedgedNotIdempotent() {
+        Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        //
+        ParallelStream<Integer> mapped = ParallelStream.of(IntStream.range(0, 60).boxed())
+                .executor(4, 10)
+                .sorted()
+                .hedged(90, 0.1)
+                .parallelMap(e -> {
+                    attempts.computeIfAbsent(e, k -> new AtomicInteger()).incrementAndGet();
+                    Thread.sleep(e == 50 ? 300 : 5);
+                    return e;
+                });
+        List<Integer> res = mapped.stream().collect(Collectors.toList());
+        //
+        assertEquals(IntStream.range(0, 60).boxed().collect(Collectors.toList()), res);
+        assertTrue(attempts.values().stream().allMatch(count -> count.get() == 1));
+        assertEquals(0, mapped.getStats().getHedgedTasks());
+    }
+
+    /**
+     * Ensure that the total weight of the items not yet released stays within the budget,
+     * items heavier than the budget being processed alone instead of never being admitted.
+     */
+    @Test
+    void limitedWeighted() {
+        AtomicLong inUse = new AtomicLong();
+        AtomicLong maxInUse = new AtomicLong();
+        //
+        List<Integer> res = ParallelStream.of(values())
+                .executor(4, 100)
+                .limited(e -> e, 10)
+                .parallelMap(e -> {
+                    long w = inUse.addAndGet(e.getWeight());
+                    maxInUse.accumulateAndGet(w, Math::max);
+                    Thread.sleep(10);
+                    inUse.addAndGet(-e.getWeight());
+                    e.release();
+                    return e.get();
+                })
+                .stream()
+                .sorted()
+                .collect(Collectors.toList());
+        //
+        assertEquals(list(), res);
+        assertTrue(maxInUse.get() <= 10);
+    }
+
     /**
      * Ensure than sorted() works even if acquire/release is not called.
      * Also verify that all items are going to the queue before being stream to the next step,
@@ -289,6 +1341,36 @@ class ParallelStreamTest {
         assertEquals(values().collect(Collectors.toList()), new ArrayList<>(res2));
     }
 
+    /**
+     * Ensure that no more items than the reorder window are started while the first item is pending.
+     */
+    @Test
+    void sortedWindow() {
+        Queue<String> res1 = new ConcurrentLinkedQueue<>();
+        Queue<Integer> res2 = new ConcurrentLinkedQueue<>();
+        //
+        ParallelStream.of(values())
+                .executor(4, 100)
+                .sorted(4)
+                .parallelMap(e -> {
+                    res1.add("+");
+                    if (e == 1) {
+                        Thread.sleep(1000);
+                        res1.add("!");
+                    }
+                    return e;
+                })
+                .map(e -> {
+                    res2.add(e);
+                    return e;
+                })
+                .run();
+        //
+        System.out.println(String.join("", res1));
+        assertEquals("++++!", String.join("", res1).substring(0, 5));
+        assertEquals(values().collect(Collectors.toList()), new ArrayList<>(res2));
+    }
+
     /**
      * Test with limited() then sorted().
      */
@@ -0,0 +1,19 @@
+package com.github.momiji.streams.parallel;
+
+import com.github.momiji.streams.parallel.internal.VirtualThreads;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs against the multi-release jar, with the java21 profile, so that its Java 21 overlay is used.
+ */
+class VirtualThreadsIT {
+
+    @Test
+    void virtualThreads() {
+        assertTrue(VirtualThreads.isSupported());
+        //
+        new ParallelStreamTest().virtualThreads();
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.momiji.wip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelExecutorServiceTest {
+
+    /**
+     * Ensure that sequential actions are run in submission order, one at a time, and that close() waits for them.
+     */
+    @Test
+    void sequential() throws Exception {
+        List<Integer> res = new ArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger maxParallel = new AtomicInteger();
+        //
+        ParallelExecutorService<Integer, Integer, Integer> service = new ParallelExecutorService<Integer, Integer, Integer>(4, 8, i -> {
+            maxParallel.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep((long) (Math.random() * 20));
+            running.decrementAndGet();
+            return i;
+        }, i -> i * 10) {
+            private final AtomicInteger inside = new AtomicInteger();
+
+            @Override
+            protected void completed(Integer result) {
+                maxRunning.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                res.add(result);
+                inside.decrementAndGet();
+            }
+        };
+        for (int i = 0; i < 50; i++) {
+            service.submit(i);
+        }
+        service.close();
+        //
+        assertEquals(IntStream.range(0, 50).map(i -> i * 10).boxed().collect(Collectors.toList()), res);
+        assertEquals(1, maxRunning.get());
+        assertTrue(maxParallel.get() > 1);
+    }
+
+    /**
+     * Ensure that a failure skips the remaining items, and is thrown by close().
+     */
+    @Test
+    void exception() throws Exception {
+        AtomicInteger sequenced = new AtomicInteger();
+        //
+        ParallelExecutorService<Integer, Integer, Integer> service = new ParallelExecutorService<Integer, Integer, Integer>(4, i -> {
+            if (i == 5) throw new IllegalStateException("failed " + i);
+            return i;
+        }, i -> sequenced.incrementAndGet()) {
+        };
+        for (int i = 0; i < 20; i++) {
+            service.submit(i);
+        }
+        //
+        Exception ex = assertThrows(IllegalStateException.class, service::close);
+        assertEquals("failed 5", ex.getMessage());
+        assertTrue(sequenced.get() <= 5);
+    }
+
+    /**
+     * Ensure that shutdown() stops accepting items.
+     */
+    @Test
+    void shutdown() throws Exception {
+        ParallelExecutorService<Integer, Integer, Integer> service = new ParallelExecutorService<Integer, Integer, Integer>(2, i -> i, i -> i) {
+        };
+        service.submit(1);
+        service.shutdown();
+        //
+        assertThrows(IllegalStateException.class, () -> service.submit(2));
+    }
+}
@@ -1,9 +1,15 @@
 package com.github.momiji.wip;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
 
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 class ParallelLimitedResourceTest {
 
     @Test
@@ -32,6 +38,43 @@ class ParallelLimitedResourceTest {
         uploads.forEach(r -> r.release());
     }
 
+    /**
+     * Ensure that sorted results never dead-lock: a permit is only given back once its result is consumed,
+     * so permits must be taken in input order, or later items could hold them all while the consumer waits
+     * for an earlier one.
+     */
+    @Test
+    @Timeout(30)
+    void processSortedPermits() {
+        for (int run = 0; run < 50; run++) {
+            Stream<Integer> stream = IntStream.range(0, 200).boxed();
+            //
+            List<Integer> res = new ParallelLimitedResource<>(stream, 2, true, i -> i).process()
+                    .map(r -> {
+                        r.release();
+                        return r.getResult();
+                    })
+                    .collect(Collectors.toList());
+            //
+            assertEquals(IntStream.range(0, 200).boxed().collect(Collectors.toList()), res);
+        }
+    }
+
+    @Test
+    void processUnsorted() {
+        Stream<Integer> stream = Stream.iterate(0, i -> i + 1).limit(20);
+
+        List<Integer> results = new ParallelLimitedResource<>(stream, 4, false, i -> {
+            maxSleep(50);
+            return i;
+        }).process().map(r -> {
+            r.release();
+            return r.getResult();
+        }).sorted().collect(Collectors.toList());
+
+        assertEquals(Stream.iterate(0, i -> i + 1).limit(20).collect(Collectors.toList()), results);
+    }
+
     private static void maxSleep(int millis) {
         try {
             Thread.sleep((long) (Math.random() * millis));
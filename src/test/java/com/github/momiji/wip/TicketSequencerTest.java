@@ -0,0 +1,88 @@
+package com.github.momiji.wip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TicketSequencerTest {
+
+    /**
+     * Ensure that critical sections run one at a time in input order, items released without being acquired
+     * being skipped, with fewer slots than items so that next() has to wait.
+     */
+    @Test
+    void sorted() throws InterruptedException {
+        SortingLocks locks = new SortingLocks(16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Integer> res = new ArrayList<>();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger maxInside = new AtomicInteger();
+        //
+        for (int i = 0; i < 10000; i++) {
+            SortedItem<Integer> item = locks.next(i);
+            executor.execute(() -> {
+                if (item.get() % 3 == 0) {
+                    // no critical section for this item
+                    item.releaseSorted();
+                    return;
+                }
+                item.acquireSorted();
+                maxInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                res.add(item.get());
+                inside.decrementAndGet();
+                item.releaseSorted();
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        //
+        assertEquals(IntStream.range(0, 10000).filter(i -> i % 3 != 0).boxed().collect(Collectors.toList()), res);
+        assertEquals(1, maxInside.get());
+    }
+
+    /**
+     * Ensure that an interrupted waiter keeps waiting, parked rather than spinning, and gets its interrupt
+     * status back once its turn comes.
+     */
+    @Test
+    void interrupted() throws InterruptedException {
+        TicketSequencer sequencer = new TicketSequencer(4);
+        long first = sequencer.next();
+        long second = sequencer.next();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            sequencer.acquire(second);
+            interrupted.set(Thread.currentThread().isInterrupted());
+            sequencer.release(second);
+        });
+        //
+        waiter.start();
+        waitUntilParked(waiter);
+        waiter.interrupt();
+        Thread.sleep(100);
+        Thread.State state = waiter.getState();
+        sequencer.release(first);
+        waiter.join(10000);
+        //
+        assertEquals(Thread.State.WAITING, state);
+        assertFalse(waiter.isAlive());
+        assertTrue(interrupted.get());
+        assertEquals(2, sequencer.getServing());
+    }
+
+    private static void waitUntilParked(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 1000 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+    }
+}